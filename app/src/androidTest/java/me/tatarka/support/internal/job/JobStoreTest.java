@@ -0,0 +1,374 @@
+package me.tatarka.support.internal.job;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import me.tatarka.support.internal.receivers.JobStatus;
+import me.tatarka.support.job.JobInfo;
+import me.tatarka.support.os.PersistableBundle;
+
+/**
+ * Writes jobs with one store and reads them back with a fresh one on the same directory, the same
+ * as the app being restarted.
+ */
+public class JobStoreTest extends AndroidTestCase {
+    private static final String PACKAGE = "me.tatarka.support.job.test";
+    private static final ComponentName SERVICE = new ComponentName(PACKAGE, PACKAGE + ".TestService");
+    private static final long PERSIST_TIMEOUT_MILLIS = 5000;
+
+    private File dataDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dataDir = new File(getContext().getFilesDir(), "JobStoreTest");
+        deleteRecursively(dataDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(dataDir);
+        super.tearDown();
+    }
+
+    public void testJournalReplay() throws Exception {
+        JobStore store = newStore();
+        JobStatus first = new JobStatus(newJob(1).setRequiresCharging(true).build());
+        JobStatus second = new JobStatus(newJob(2).setOverrideDeadline(60 * 1000).build());
+        JobStatus third = new JobStatus(newJob(3).setRequiresDeviceIdle(true).build());
+        synchronized (store) {
+            store.add(first);
+            store.add(second);
+            store.add(third);
+            store.remove(second);
+        }
+        awaitPersisted(store);
+        assertFalse(getJobsFile().exists());
+        assertTrue(getJournalFile().exists());
+
+        JobStore restored = newStore();
+        synchronized (restored) {
+            assertEquals(2, restored.size());
+            assertJobEquals(first, restored.getJobByJobId(1));
+            assertNull(restored.getJobByJobId(2));
+            assertJobEquals(third, restored.getJobByJobId(3));
+        }
+    }
+
+    public void testJournalReplayAfterTornTail() throws Exception {
+        JobStore store = newStore();
+        JobStatus first = new JobStatus(newJob(1).setRequiresCharging(true).build());
+        JobStatus second = new JobStatus(newJob(2).setRequiresDeviceIdle(true).build());
+        synchronized (store) {
+            store.add(first);
+            store.add(second);
+        }
+        awaitPersisted(store);
+
+        // Dying in the middle of an append leaves part of a record at the end.
+        File journal = getJournalFile();
+        long validLength = journal.length();
+        FileOutputStream out = new FileOutputStream(journal, true);
+        try {
+            out.write(new byte[]{0, 0, 0, 0, 3, 0, 0, 1, 0, 42, 42});
+        } finally {
+            out.close();
+        }
+
+        JobStore restored = newStore();
+        JobStatus third = new JobStatus(newJob(3).setRequiresCharging(true).build());
+        synchronized (restored) {
+            assertEquals(2, restored.size());
+            assertJobEquals(first, restored.getJobByJobId(1));
+            assertJobEquals(second, restored.getJobByJobId(2));
+            assertNull(restored.getJobByJobId(3));
+            // The torn record is cut off so new records end up right after the last valid one.
+            assertEquals(validLength, journal.length());
+            restored.add(third);
+        }
+        awaitPersisted(restored);
+
+        JobStore restoredAgain = newStore();
+        synchronized (restoredAgain) {
+            assertEquals(3, restoredAgain.size());
+            assertJobEquals(third, restoredAgain.getJobByJobId(3));
+        }
+    }
+
+    public void testCompaction() throws Exception {
+        JobStore store = newStore();
+        synchronized (store) {
+            store.add(new JobStatus(newJob(1).setRequiresCharging(true).build()));
+            store.add(new JobStatus(newJob(2).setRequiresCharging(true).build()));
+        }
+        awaitPersisted(store);
+
+        // Clearing replaces the snapshot and starts a new journal, the old records must not come
+        // back.
+        JobStatus kept = new JobStatus(newJob(3).setRequiresDeviceIdle(true).build());
+        synchronized (store) {
+            store.clear();
+            store.add(kept);
+        }
+        awaitPersisted(store);
+        assertTrue(getJobsFile().exists());
+
+        JobStatus appended = new JobStatus(newJob(4).setRequiresCharging(true).build());
+        synchronized (store) {
+            store.add(appended);
+        }
+        awaitPersisted(store);
+
+        JobStore restored = newStore();
+        synchronized (restored) {
+            assertEquals(2, restored.size());
+            assertJobEquals(kept, restored.getJobByJobId(3));
+            assertJobEquals(appended, restored.getJobByJobId(4));
+        }
+    }
+
+    public void testCompactionWhenJournalIsFull() throws Exception {
+        JobStore store = newStore();
+        // Enough replacements to go over the journal limit many times.
+        for (int round = 0; round < 20; round++) {
+            synchronized (store) {
+                for (int id = 0; id < 100; id++) {
+                    PersistableBundle extras = new PersistableBundle();
+                    extras.putInt("round", round);
+                    store.add(new JobStatus(newJob(id)
+                            .setRequiresCharging(true)
+                            .setExtras(extras)
+                            .build()));
+                }
+            }
+            awaitPersisted(store);
+        }
+        assertTrue(getJobsFile().exists());
+        assertTrue(getJournalFile().length() < 64 * 1024);
+
+        JobStore restored = newStore();
+        synchronized (restored) {
+            assertEquals(100, restored.size());
+            for (int id = 0; id < 100; id++) {
+                assertEquals(19, restored.getJobByJobId(id).getExtras().getInt("round"));
+            }
+        }
+    }
+
+    public void testStringTableRoundTrip() throws Exception {
+        // Services that share a package, and ones that share a class name but not a package.
+        ComponentName[] services = {
+                new ComponentName("com.example.a", "com.example.shared.SyncService"),
+                new ComponentName("com.example.a", "com.example.a.UploadService"),
+                new ComponentName("com.example.b", "com.example.shared.SyncService"),
+                new ComponentName("com.example.b", "com.example.a.UploadService"),
+        };
+        JobStatus[] jobs = new JobStatus[services.length * 2];
+        for (int i = 0; i < jobs.length; i++) {
+            PersistableBundle extras = new PersistableBundle();
+            extras.putString("account", "user" + (i % 3) + "@example.com");
+            extras.putString("service", services[i % services.length].getClassName());
+            extras.putStringArray("tags", new String[]{"sync", PACKAGE, null});
+            if (i == 0) {
+                // Large enough to be stored out of line.
+                char[] blob = new char[16 * 1024];
+                Arrays.fill(blob, 'x');
+                extras.putString("blob", new String(blob));
+            }
+            jobs[i] = new JobStatus(new JobInfo.Builder(i, services[i % services.length])
+                    .setPersisted(true)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                    .setExtras(extras)
+                    .build());
+        }
+
+        // Once through the journal, where every record has its own string table.
+        JobStore store = newStore();
+        synchronized (store) {
+            for (JobStatus job : jobs) {
+                store.add(job);
+            }
+        }
+        awaitPersisted(store);
+        assertStoreContains(newStore(), jobs);
+
+        // And once through a snapshot, which shares a single string table.
+        synchronized (store) {
+            store.clear();
+            for (JobStatus job : jobs) {
+                store.add(job);
+            }
+        }
+        awaitPersisted(store);
+        assertTrue(getJobsFile().exists());
+        assertStoreContains(newStore(), jobs);
+    }
+
+    public void testMigratesLegacyXml() throws Exception {
+        long nowWallclock = System.currentTimeMillis();
+        long nowElapsed = SystemClock.elapsedRealtime();
+        // As written by releases that stored jobs as xml.
+        String xml = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                + "<job-info version=\"0\">\n"
+                + "<job jobid=\"1\" package=\"" + PACKAGE + "\" class=\"" + SERVICE.getClassName() + "\">\n"
+                + "<constraints charging=\"true\" unmetered=\"true\" />\n"
+                + "<one-off persisted=\"true\" deadline=\"" + (nowWallclock + 2 * 60 * 60 * 1000)
+                + "\" delay=\"" + (nowWallclock + 60 * 60 * 1000)
+                + "\" backoff-policy=\"0\" initial-backoff=\"60000\" />\n"
+                + "<extras>\n"
+                + "<string name=\"key\">value</string>\n"
+                + "<int name=\"count\" value=\"3\" />\n"
+                + "</extras>\n"
+                + "</job>\n"
+                + "<job jobid=\"2\" package=\"" + PACKAGE + "\" class=\"" + SERVICE.getClassName() + "\">\n"
+                + "<constraints idle=\"true\" />\n"
+                + "<periodic period=\"3600000\" persisted=\"true\" />\n"
+                + "<extras />\n"
+                + "</job>\n"
+                + "</job-info>\n";
+        File legacyFile = new File(getJobDir(), "jobs.xml");
+        getJobDir().mkdirs();
+        FileOutputStream out = new FileOutputStream(legacyFile);
+        try {
+            out.write(xml.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        JobStore store = newStore();
+        synchronized (store) {
+            assertEquals(2, store.size());
+            assertMigrated(store, nowElapsed);
+        }
+        awaitPersisted(store);
+        assertFalse(legacyFile.exists());
+        assertTrue(getJobsFile().exists());
+
+        JobStore restored = newStore();
+        synchronized (restored) {
+            assertEquals(2, restored.size());
+            assertMigrated(restored, nowElapsed);
+        }
+    }
+
+    private static void assertMigrated(JobStore store, long nowElapsed) {
+        JobStatus oneOff = store.getJobByJobId(1);
+        assertEquals(SERVICE, oneOff.getServiceComponent());
+        assertTrue(oneOff.hasChargingConstraint());
+        assertTrue(oneOff.hasUnmeteredConstraint());
+        assertTrue(oneOff.isPersisted());
+        assertEquals(JobInfo.BACKOFF_POLICY_LINEAR, oneOff.peekJob().getBackoffPolicy());
+        assertEquals(60000, oneOff.peekJob().getInitialBackoffMillis());
+        assertEquals("value", oneOff.getExtras().getString("key"));
+        assertEquals(3, oneOff.getExtras().getInt("count"));
+        assertTimeNear(nowElapsed + 60 * 60 * 1000, oneOff.getEarliestRunTime());
+        assertTimeNear(nowElapsed + 2 * 60 * 60 * 1000, oneOff.getLatestRunTimeElapsed());
+
+        JobStatus periodic = store.getJobByJobId(2);
+        assertTrue(periodic.hasIdleConstraint());
+        assertTrue(periodic.peekJob().isPeriodic());
+        assertEquals(60 * 60 * 1000, periodic.peekJob().getIntervalMillis());
+        assertTrue(periodic.getExtras().isEmpty());
+    }
+
+    private JobStore newStore() {
+        return JobStore.initAndGetForTesting(getContext(), dataDir);
+    }
+
+    private static JobInfo.Builder newJob(int jobId) {
+        return new JobInfo.Builder(jobId, SERVICE).setPersisted(true);
+    }
+
+    private File getJobDir() {
+        return new File(new File(dataDir, "system"), "job");
+    }
+
+    private File getJobsFile() {
+        return new File(getJobDir(), "jobs.bin");
+    }
+
+    private File getJournalFile() {
+        return new File(getJobDir(), "jobs.journal");
+    }
+
+    private static void awaitPersisted(JobStore store) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        store.whenPersisted(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(PERSIST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private static void assertStoreContains(JobStore store, JobStatus[] jobs) {
+        synchronized (store) {
+            assertEquals(jobs.length, store.size());
+            for (JobStatus job : jobs) {
+                assertJobEquals(job, store.getJobByJobId(job.getJobId()));
+            }
+        }
+    }
+
+    private static void assertJobEquals(JobStatus expected, JobStatus actual) {
+        assertNotNull(actual);
+        JobInfo expectedJob = expected.getJob();
+        JobInfo actualJob = actual.getJob();
+        assertEquals(expectedJob.getId(), actualJob.getId());
+        assertEquals(expectedJob.getService(), actualJob.getService());
+        assertEquals(expectedJob.getNetworkType(), actualJob.getNetworkType());
+        assertEquals(expectedJob.isRequireCharging(), actualJob.isRequireCharging());
+        assertEquals(expectedJob.isRequireDeviceIdle(), actualJob.isRequireDeviceIdle());
+        assertEquals(expectedJob.isPersisted(), actualJob.isPersisted());
+        assertEquals(expectedJob.isPeriodic(), actualJob.isPeriodic());
+        assertEquals(expectedJob.getIntervalMillis(), actualJob.getIntervalMillis());
+        assertEquals(expectedJob.getBackoffPolicy(), actualJob.getBackoffPolicy());
+        assertEquals(expectedJob.getInitialBackoffMillis(), actualJob.getInitialBackoffMillis());
+        // Written on the same boot, so the run times come back exactly.
+        assertEquals(expected.getEarliestRunTime(), actual.getEarliestRunTime());
+        assertEquals(expected.getLatestRunTimeElapsed(), actual.getLatestRunTimeElapsed());
+
+        PersistableBundle expectedExtras = expectedJob.getExtras();
+        PersistableBundle actualExtras = actualJob.getExtras();
+        assertEquals(expectedExtras.keySet(), actualExtras.keySet());
+        for (String key : expectedExtras.keySet()) {
+            Object expectedValue = expectedExtras.get(key);
+            Object actualValue = actualExtras.get(key);
+            if (expectedValue instanceof String[]) {
+                assertTrue(Arrays.equals((String[]) expectedValue, (String[]) actualValue));
+            } else {
+                assertEquals(expectedValue, actualValue);
+            }
+        }
+    }
+
+    /**
+     * Wall clock times are converted to elapsed time when they are read, so they can be off by
+     * however long the test took to get there.
+     */
+    private static void assertTimeNear(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual,
+                Math.abs(expected - actual) < 10 * 1000);
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+    }
+}
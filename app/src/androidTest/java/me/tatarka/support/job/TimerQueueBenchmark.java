@@ -0,0 +1,94 @@
+package me.tatarka.support.job;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import me.tatarka.support.internal.receivers.JobStatus;
+import me.tatarka.support.internal.receivers.TimerHeap;
+import me.tatarka.support.internal.receivers.TimerQueue;
+import me.tatarka.support.internal.receivers.TimingWheel;
+
+/**
+ * Compares the heap and the timing wheel used to track delayed jobs. Each run schedules n one-off
+ * jobs with delays of up to an hour, cancels a quarter of them, and then drains the rest the way
+ * the time controller does, one alarm at a time. Results are logged under {@link #TAG}, the
+ * crossover is the first size where the wheel is faster.
+ */
+public class TimerQueueBenchmark extends TestCase {
+    private static final String TAG = "TimerQueueBenchmark";
+
+    private static final int[] SIZES = {100, 1000, 5000, 10000, 25000, 50000};
+    private static final long MAX_DELAY_MILLIS = 60 * 60 * 1000;
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 5;
+
+    public void testCrossover() {
+        JobInfo job = new JobInfo.Builder(0, new ComponentName("me.tatarka.support.job", "Benchmark"))
+                .setMinimumLatency(1)
+                .build();
+        int crossover = -1;
+        for (int n : SIZES) {
+            long heapNanos = run(job, n, false);
+            long wheelNanos = run(job, n, true);
+            Log.i(TAG, "n=" + n + " heap=" + heapNanos / 1000 + "us wheel=" + wheelNanos / 1000 + "us");
+            if (crossover == -1 && wheelNanos < heapNanos) {
+                crossover = n;
+            }
+        }
+        Log.i(TAG, crossover == -1 ? "No crossover up to n=" + SIZES[SIZES.length - 1]
+                : "Timing wheel is faster from n=" + crossover);
+    }
+
+    /**
+     * @return The best time of {@link #RUNS} runs in nanoseconds.
+     */
+    private static long run(JobInfo job, int n, boolean wheel) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_RUNS + RUNS; i++) {
+            long nanos = runOnce(job, n, wheel, new Random(i));
+            if (i >= WARMUP_RUNS) {
+                best = Math.min(best, nanos);
+            }
+        }
+        return best;
+    }
+
+    private static long runOnce(JobInfo job, int n, boolean wheel, Random random) {
+        long now = SystemClock.elapsedRealtime();
+        JobStatus[] jobs = new JobStatus[n];
+        for (int i = 0; i < n; i++) {
+            long delay = 1 + (long) (random.nextDouble() * MAX_DELAY_MILLIS);
+            jobs[i] = new JobStatus(job, now + delay, JobStatus.NO_LATEST_RUNTIME);
+        }
+        List<JobStatus> expired = new ArrayList<JobStatus>();
+
+        long start = System.nanoTime();
+        TimerQueue queue = wheel
+                ? new TimingWheel(TimerQueue.TYPE_DELAY, now)
+                : new TimerHeap(TimerQueue.TYPE_DELAY);
+        for (int i = 0; i < n; i++) {
+            queue.add(jobs[i]);
+        }
+        for (int i = 0; i < n; i += 4) {
+            queue.remove(jobs[i]);
+        }
+        int drained = 0;
+        long next;
+        while ((next = queue.nextTime()) != Long.MAX_VALUE) {
+            expired.clear();
+            queue.removeExpired(next, expired);
+            drained += expired.size();
+        }
+        long nanos = System.nanoTime() - start;
+
+        assertEquals(n - (n + 3) / 4, drained);
+        return nanos;
+    }
+}
@@ -0,0 +1,199 @@
+package me.tatarka.support.job;
+
+import android.content.ComponentName;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import me.tatarka.support.internal.receivers.JobStatus;
+import me.tatarka.support.internal.receivers.TimerHeap;
+import me.tatarka.support.internal.receivers.TimerQueue;
+import me.tatarka.support.internal.receivers.TimingWheel;
+
+/**
+ * Runs the same random sequence of operations against the timing wheel and the heap and checks
+ * they always agree. A job can only be in one queue of each type, so the wheel tracks the jobs'
+ * earliest run time and the heap their deadline, which are always the same here.
+ */
+public class TimerQueueTest extends TestCase {
+    private static final long START_MILLIS = 1000 * 1000;
+    /**
+     * The ranges covered by each level of the wheel, and then the overflow bucket.
+     */
+    private static final long[] SPANS_MILLIS = {
+            64L * 1000,
+            64L * 64 * 1000,
+            64L * 64 * 64 * 1000,
+            64L * 64 * 64 * 64 * 1000,
+            2L * 64 * 64 * 64 * 64 * 1000
+    };
+    private static final int SEEDS = 20;
+    private static final int OPERATIONS = 2000;
+
+    private JobInfo job;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        job = new JobInfo.Builder(0, new ComponentName("me.tatarka.support.job", "Test"))
+                .setMinimumLatency(1)
+                .build();
+    }
+
+    public void testRandomOperations() {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            runRandomOperations(new Random(seed));
+        }
+    }
+
+    public void testExpiresInOrderAcrossLevels() {
+        TimingWheel wheel = new TimingWheel(TimerQueue.TYPE_DELAY, START_MILLIS);
+        List<JobStatus> jobs = new ArrayList<JobStatus>();
+        for (long span : SPANS_MILLIS) {
+            jobs.add(newJob(START_MILLIS + span - 1));
+        }
+        // Added in reverse so the order they come out in isn't the order they went in.
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            wheel.add(jobs.get(i));
+        }
+
+        List<JobStatus> expired = new ArrayList<JobStatus>();
+        for (int i = 0; i < jobs.size(); i++) {
+            long next = wheel.nextTime();
+            assertEquals(jobs.get(i).getEarliestRunTime(), next);
+            expired.clear();
+            wheel.removeExpired(next - 1, expired);
+            assertTrue(expired.isEmpty());
+            wheel.removeExpired(next, expired);
+            assertEquals(1, expired.size());
+            assertSame(jobs.get(i), expired.get(0));
+        }
+        assertTrue(wheel.isEmpty());
+        assertEquals(Long.MAX_VALUE, wheel.nextTime());
+    }
+
+    public void testRescheduleAcrossLevels() {
+        TimingWheel wheel = new TimingWheel(TimerQueue.TYPE_DELAY, START_MILLIS);
+        JobStatus far = newJob(START_MILLIS + SPANS_MILLIS[3] - 1);
+        wheel.add(far);
+        assertTrue(wheel.remove(far));
+        assertFalse(wheel.contains(far));
+        assertFalse(wheel.remove(far));
+
+        JobStatus near = newJob(START_MILLIS + 10);
+        wheel.add(near);
+        wheel.add(far);
+        assertEquals(2, wheel.size());
+        assertEquals(near.getEarliestRunTime(), wheel.nextTime());
+        assertEquals(near.getEarliestRunTime(), wheel.latestTimeAtMost(START_MILLIS + SPANS_MILLIS[2]));
+        assertEquals(far.getEarliestRunTime(), wheel.latestTimeAtMost(Long.MAX_VALUE / 2));
+        assertEquals(Long.MIN_VALUE, wheel.latestTimeAtMost(START_MILLIS));
+    }
+
+    private void runRandomOperations(Random random) {
+        long now = START_MILLIS;
+        TimingWheel wheel = new TimingWheel(TimerQueue.TYPE_DELAY, now);
+        TimerHeap heap = new TimerHeap(TimerQueue.TYPE_DEADLINE);
+        List<JobStatus> queued = new ArrayList<JobStatus>();
+        List<JobStatus> removed = new ArrayList<JobStatus>();
+        List<JobStatus> wheelExpired = new ArrayList<JobStatus>();
+        List<JobStatus> heapExpired = new ArrayList<JobStatus>();
+
+        for (int op = 0; op < OPERATIONS; op++) {
+            int choice = random.nextInt(100);
+            if (choice < 35 || queued.isEmpty()) {
+                // Schedule a new job.
+                JobStatus added = newJob(now + randomDelay(random));
+                wheel.add(added);
+                heap.add(added);
+                queued.add(added);
+            } else if (choice < 50) {
+                // Cancel a job.
+                JobStatus picked = takeRandom(random, queued);
+                assertTrue(wheel.remove(picked));
+                assertTrue(heap.remove(picked));
+                assertFalse(wheel.contains(picked));
+                assertFalse(heap.contains(picked));
+                removed.add(picked);
+            } else if (choice < 60) {
+                // Reschedule a job, which replaces it with one with a new time.
+                JobStatus picked = takeRandom(random, queued);
+                assertTrue(wheel.remove(picked));
+                assertTrue(heap.remove(picked));
+                JobStatus rescheduled = newJob(now + randomDelay(random));
+                wheel.add(rescheduled);
+                heap.add(rescheduled);
+                queued.add(rescheduled);
+            } else if (choice < 65 && !removed.isEmpty()) {
+                // Add a job back after it was removed.
+                JobStatus picked = takeRandom(random, removed);
+                assertFalse(wheel.remove(picked));
+                assertFalse(heap.remove(picked));
+                wheel.add(picked);
+                heap.add(picked);
+                queued.add(picked);
+            } else if (choice < 90) {
+                // Go forward in time and expire jobs.
+                now += randomDelay(random) / (1 + random.nextInt(8));
+                wheelExpired.clear();
+                heapExpired.clear();
+                wheel.removeExpired(now, wheelExpired);
+                heap.removeExpired(now, heapExpired);
+                assertEquals(asSet(heapExpired), asSet(wheelExpired));
+                assertEquals(heapExpired.size(), wheelExpired.size());
+                for (int i = 0; i < wheelExpired.size(); i++) {
+                    assertTrue(wheelExpired.get(i).getEarliestRunTime() <= now);
+                }
+                queued.removeAll(wheelExpired);
+                assertTrue(wheel.nextTime() > now);
+            } else {
+                long limit = now + randomDelay(random);
+                assertEquals(heap.latestTimeAtMost(limit), wheel.latestTimeAtMost(limit));
+            }
+            assertEquals(queued.size(), wheel.size());
+            assertEquals(queued.size(), heap.size());
+            assertEquals(heap.nextTime(), wheel.nextTime());
+        }
+
+        // Everything left comes out in the same order.
+        long next;
+        while ((next = heap.nextTime()) != Long.MAX_VALUE) {
+            assertEquals(next, wheel.nextTime());
+            wheelExpired.clear();
+            heapExpired.clear();
+            wheel.removeExpired(next, wheelExpired);
+            heap.removeExpired(next, heapExpired);
+            assertEquals(asSet(heapExpired), asSet(wheelExpired));
+        }
+        assertTrue(wheel.isEmpty());
+    }
+
+    private JobStatus newJob(long timeElapsedMillis) {
+        return new JobStatus(job, timeElapsedMillis, timeElapsedMillis);
+    }
+
+    /**
+     * @return A delay within the range of a random level of the wheel, including 0.
+     */
+    private static long randomDelay(Random random) {
+        long span = SPANS_MILLIS[random.nextInt(SPANS_MILLIS.length)];
+        return (long) (random.nextDouble() * span);
+    }
+
+    private static JobStatus takeRandom(Random random, List<JobStatus> jobs) {
+        int index = random.nextInt(jobs.size());
+        JobStatus job = jobs.get(index);
+        jobs.set(index, jobs.get(jobs.size() - 1));
+        jobs.remove(jobs.size() - 1);
+        return job;
+    }
+
+    private static Set<JobStatus> asSet(List<JobStatus> jobs) {
+        return new HashSet<JobStatus>(jobs);
+    }
+}
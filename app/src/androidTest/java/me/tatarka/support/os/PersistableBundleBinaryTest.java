@@ -0,0 +1,96 @@
+package me.tatarka.support.os;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Round trips bundles through {@link PersistableBundle#saveToBinary(java.io.DataOutput)} and
+ * {@link PersistableBundle#restoreFromBinary(ByteBuffer)}.
+ */
+public class PersistableBundleBinaryTest extends TestCase {
+
+    public void testEmpty() throws IOException {
+        PersistableBundle restored = roundTrip(new PersistableBundle());
+        assertTrue(restored.isEmpty());
+    }
+
+    public void testValues() throws IOException {
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putInt("int", -42);
+        bundle.putLong("long", Long.MIN_VALUE);
+        bundle.putDouble("double", 3.5);
+        bundle.putString("string", "value \u00e9");
+        bundle.putString("empty", "");
+
+        PersistableBundle restored = roundTrip(bundle);
+        assertEquals(5, restored.size());
+        assertEquals(-42, restored.getInt("int"));
+        assertEquals(Long.MIN_VALUE, restored.getLong("long"));
+        assertEquals(3.5, restored.getDouble("double"));
+        assertEquals("value \u00e9", restored.getString("string"));
+        assertEquals("", restored.getString("empty"));
+    }
+
+    public void testArrays() throws IOException {
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putIntArray("ints", new int[]{1, -2, Integer.MAX_VALUE});
+        bundle.putLongArray("longs", new long[]{0, Long.MAX_VALUE});
+        bundle.putDoubleArray("doubles", new double[]{-1.25});
+        bundle.putStringArray("strings", new String[]{"a", null, ""});
+        bundle.putIntArray("emptyInts", new int[0]);
+
+        PersistableBundle restored = roundTrip(bundle);
+        assertTrue(Arrays.equals(new int[]{1, -2, Integer.MAX_VALUE}, restored.getIntArray("ints")));
+        assertTrue(Arrays.equals(new long[]{0, Long.MAX_VALUE}, restored.getLongArray("longs")));
+        assertTrue(Arrays.equals(new double[]{-1.25}, restored.getDoubleArray("doubles")));
+        assertTrue(Arrays.equals(new String[]{"a", null, ""}, restored.getStringArray("strings")));
+        assertEquals(0, restored.getIntArray("emptyInts").length);
+    }
+
+    public void testNulls() throws IOException {
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putString("nullString", null);
+        bundle.putStringArray("nullArray", null);
+        bundle.putString(null, "nullKey");
+
+        PersistableBundle restored = roundTrip(bundle);
+        assertEquals(3, restored.size());
+        assertTrue(restored.containsKey("nullString"));
+        assertNull(restored.get("nullString"));
+        assertTrue(restored.containsKey("nullArray"));
+        assertNull(restored.get("nullArray"));
+        assertEquals("nullKey", restored.getString(null));
+    }
+
+    public void testNestedBundles() throws IOException {
+        PersistableBundle inner = new PersistableBundle();
+        inner.putString("key", "inner");
+        inner.putPersistableBundle("empty", new PersistableBundle());
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putPersistableBundle("inner", inner);
+        bundle.putInt("after", 7);
+
+        PersistableBundle restored = roundTrip(bundle);
+        PersistableBundle restoredInner = restored.getPersistableBundle("inner");
+        assertNotNull(restoredInner);
+        assertEquals("inner", restoredInner.getString("key"));
+        assertTrue(restoredInner.getPersistableBundle("empty").isEmpty());
+        assertEquals(7, restored.getInt("after"));
+    }
+
+    private static PersistableBundle roundTrip(PersistableBundle bundle) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        bundle.saveToBinary(out);
+        out.flush();
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        PersistableBundle restored = PersistableBundle.restoreFromBinary(in);
+        assertEquals("Trailing bytes", 0, in.remaining());
+        return restored;
+    }
+}
@@ -7,6 +7,7 @@ import android.os.RemoteException;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.List;
 
 import me.tatarka.support.job.IJobCallback;
 import me.tatarka.support.job.IJobService;
@@ -41,12 +42,18 @@ public abstract class IJobServiceCompat {
                 public void stopJob(JobParameters jobParams) throws RemoteException {
                     IJobServiceCompat.this.stopJob(jobParams);
                 }
+
+                @Override
+                public void startJobs(List<JobParameters> jobParams) throws RemoteException {
+                    IJobServiceCompat.this.startJobs(jobParams);
+                }
             }.asBinder();
         }
     }
 
     public abstract void startJob(JobParameters jobParams);
     public abstract void stopJob(JobParameters jobParams);
+    public abstract void startJobs(List<JobParameters> jobParams);
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private static me.tatarka.support.job.JobParameters convertFromJobParameters(final android.app.job.JobParameters params) {
@@ -74,6 +81,22 @@ public abstract class IJobServiceCompat {
                     callback.acknowledgeStopMessage(jobId, reschedule);
                 }
             }
+
+            // The system scheduler only ever delivers one job at a time, so these will only be
+            // called with this job's id.
+            @Override
+            public void jobsFinished(int[] jobIds, boolean needsReschedule) throws RemoteException {
+                for (int jobId : jobIds) {
+                    jobFinished(jobId, needsReschedule);
+                }
+            }
+
+            @Override
+            public void acknowledgeStartMessages(int[] jobIds, boolean workOngoing) throws RemoteException {
+                for (int jobId : jobIds) {
+                    acknowledgeStartMessage(jobId, workOngoing);
+                }
+            }
         }, params.getJobId(), new PersistableBundle(params.getExtras()), params.isOverrideDeadlineExpired());
     }
 
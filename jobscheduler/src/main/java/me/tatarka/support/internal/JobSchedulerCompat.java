@@ -3,6 +3,8 @@ package me.tatarka.support.internal;
 import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -29,6 +31,8 @@ public class JobSchedulerCompat extends JobScheduler {
     private JobSchedulerCompat(Context context) {
         this.context = context.getApplicationContext();
         pm = context.getPackageManager();
+        // Start loading jobs in the background so they are ready by the time they are needed.
+        JobStore.initAndGet(this.context);
     }
 
     @Override
@@ -44,16 +48,39 @@ public class JobSchedulerCompat extends JobScheduler {
     @Override
     public synchronized List<JobInfo> getAllPendingJobs() {
         JobStore jobStore = JobStore.initAndGet(context);
-        List<JobInfo> result = new ArrayList<JobInfo>();
+        List<JobStatus> jobs;
         synchronized (jobStore) {
-            ArraySet<JobStatus> jobs = jobStore.getJobs();
-            for (int i = 0; i < jobs.size(); i++) {
-                result.add(jobs.valueAt(i).getJob());
+            ArraySet<JobStatus> storeJobs = jobStore.getJobs();
+            jobs = new ArrayList<JobStatus>(storeJobs.size());
+            for (int i = 0; i < storeJobs.size(); i++) {
+                jobs.add(storeJobs.valueAt(i));
             }
         }
+        // Out of line extras are read from disk, so do it without holding the store lock.
+        List<JobInfo> result = new ArrayList<JobInfo>(jobs.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            result.add(jobs.get(i).getJob());
+        }
         return result;
     }
 
+    @Override
+    public void getAllPendingJobs(final PendingJobsCallback callback) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        JobStore.initAndGet(context).whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                final List<JobInfo> jobs = getAllPendingJobs();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPendingJobs(jobs);
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public synchronized int schedule(JobInfo jobInfo) {
         checkPermissions(jobInfo);
@@ -3,6 +3,8 @@ package me.tatarka.support.internal;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -48,6 +50,17 @@ public class JobSchedulerLollipopDelegate extends JobScheduler {
         return result;
     }
 
+    @Override
+    public void getAllPendingJobs(final PendingJobsCallback callback) {
+        final List<JobInfo> jobs = getAllPendingJobs();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPendingJobs(jobs);
+            }
+        });
+    }
+
     @Override
     public int schedule(JobInfo job) {
         return jobScheduler.schedule(convertJobInfo(job));
@@ -0,0 +1,31 @@
+package me.tatarka.support.internal;
+
+import android.os.HandlerThread;
+
+/**
+ * Shared singleton thread that runs the job scheduler, so that looking up jobs, binding to job
+ * services and rescheduling never happen on the main thread. Android callbacks are posted here.
+ *
+ * @hide
+ */
+public final class SchedulerThread extends HandlerThread {
+    private static SchedulerThread sInstance;
+
+    private SchedulerThread() {
+        super("me.tatarka.support.scheduler", android.os.Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    private static void ensureThreadLocked() {
+        if (sInstance == null) {
+            sInstance = new SchedulerThread();
+            sInstance.start();
+        }
+    }
+
+    public static SchedulerThread get() {
+        synchronized (SchedulerThread.class) {
+            ensureThreadLocked();
+            return sInstance;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package me.tatarka.support.internal.job;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import me.tatarka.support.os.PersistableBundle;
+
+/**
+ * Stores large job extras outside of the main jobs file. Each blob is named by the SHA-1 of its
+ * contents, so identical extras are only stored once and rewriting the jobs file never has to
+ * rewrite a blob that is already on disk.
+ *
+ * @hide
+ */
+public class ExtrasBlobStore {
+    private static final String TAG = "ExtrasBlobStore";
+
+    /**
+     * Serialized extras at least this large are stored as a blob instead of inline.
+     */
+    static final int THRESHOLD_BYTES = 4 * 1024;
+    private static final String BLOB_SUFFIX = ".bin";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File mDir;
+
+    ExtrasBlobStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * @return A reference to an existing blob, this does not touch the disk.
+     */
+    Blob get(String hash) {
+        return new Blob(this, hash);
+    }
+
+    /**
+     * Writes out the serialized extras if a blob with the same contents doesn't exist yet. This
+     * should only be called on the io thread.
+     */
+    Blob put(byte[] data) throws IOException {
+        String hash = sha1(data);
+        File file = getFile(hash);
+        if (!file.exists()) {
+            mDir.mkdirs();
+            AtomicFile blobFile = new AtomicFile(file);
+            FileOutputStream fos = blobFile.startWrite();
+            try {
+                fos.write(data);
+                blobFile.finishWrite(fos);
+            } catch (IOException e) {
+                blobFile.failWrite(fos);
+                throw e;
+            }
+        }
+        return new Blob(this, hash);
+    }
+
+    /**
+     * Deletes every blob that is not in the given set of hashes. This should only be called on the
+     * io thread once nothing on disk references the other blobs.
+     */
+    void retainAll(Set<String> hashes) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(BLOB_SUFFIX)) {
+                // Leftovers from an interrupted AtomicFile write are cleaned up by it.
+                continue;
+            }
+            String hash = name.substring(0, name.length() - BLOB_SUFFIX.length());
+            if (!hashes.contains(hash)) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getFile(String hash) {
+        return new File(mDir, hash + BLOB_SUFFIX);
+    }
+
+    private static String sha1(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available.
+            throw new AssertionError(e);
+        }
+        byte[] hash = digest.digest(data);
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * A reference to a stored set of extras.
+     */
+    public static final class Blob {
+        private final ExtrasBlobStore store;
+        private final String hash;
+
+        private Blob(ExtrasBlobStore store, String hash) {
+            this.store = store;
+            this.hash = hash;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Reads the extras from disk. If the blob is missing or corrupt this logs and returns empty
+         * extras rather than failing the job.
+         */
+        public PersistableBundle load() {
+            AtomicFile file = new AtomicFile(store.getFile(hash));
+            try {
+                return PersistableBundle.restoreFromBinary(ByteBuffer.wrap(file.readFully()));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read job extras " + hash, e);
+            } catch (BufferUnderflowException e) {
+                Log.e(TAG, "Unable to read job extras " + hash, e);
+            }
+            return PersistableBundle.EMPTY;
+        }
+    }
+}
@@ -8,53 +8,202 @@ import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.os.Message;
+import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.tatarka.support.internal.SchedulerThread;
 import me.tatarka.support.internal.receivers.IdleReceiver;
 import me.tatarka.support.job.IJobCallback;
 import me.tatarka.support.job.IJobService;
 import me.tatarka.support.job.JobInfo;
+import me.tatarka.support.job.JobScheduler;
+import me.tatarka.support.job.JobSchedulerStats;
 import me.tatarka.support.job.JobParameters;
 import me.tatarka.support.internal.receivers.JobStatus;
 import me.tatarka.support.internal.receivers.TimeReceiver;
 
 /**
+ * Runs jobs by binding to their services. All of the work happens on the {@link SchedulerThread},
+ * callbacks from the system and from job services are posted there so the state below is only
+ * ever touched by that one thread.
+ *
  * @hide
  */
 public class JobSchedulerService extends Service {
     static final String TAG = "JobServiceSchedulerService";
 
     private static final String EXTRA_MSG = "EXTRA_MSG";
-    private static final String EXTRA_JOB_ID = "EXTRA_JOB_ID";
+    private static final String EXTRA_JOB_IDS = "EXTRA_JOB_IDS";
+    private static final String EXTRA_HANDOFF_ID = "EXTRA_HANDOFF_ID";
 
-    private static final int MSG_START_JOB = 0;
-    private static final int MSG_STOP_JOB = 1;
+    private static final int MSG_STOP_JOBS = 1;
     private static final int MSG_STOP_ALL = 2;
-    private static final int MSG_RECHECK_CONSTRAINTS = 3;
+    private static final int MSG_RUN_READY_JOBS = 4;
+
+    /**
+     * How long a job has to respond to being stopped before it is unbound anyway.
+     */
+    private static final long STOP_GRACE_MILLIS = 8 * 1000;
+
+    private static final AtomicInteger sTimeoutCount = new AtomicInteger();
+    private static final AtomicInteger sForcedUnbindCount = new AtomicInteger();
+    private static final AtomicLong sWakeLockHeldMillis = new AtomicLong();
+
+    /**
+     * How long to keep the device awake after a constraint changes, until the jobs that became
+     * ready have taken their own wake locks.
+     */
+    private static final long HANDOFF_WAKE_LOCK_TIMEOUT_MILLIS = 10 * 1000;
+    /**
+     * A wake lock for each signal that hasn't been handled yet, by the id sent along with it, so
+     * handling one signal doesn't let the device sleep before the next is handled. Guarded by the
+     * class lock.
+     */
+    private static final SparseArray<PowerManager.WakeLock> sHandoffWakeLocks = new SparseArray<PowerManager.WakeLock>();
+    private static int sNextHandoffId = 1;
+
+    /**
+     * The running instance, if any, so that receivers can signal it without going through a
+     * service start. Guarded by the class lock.
+     */
+    private static JobSchedulerService sInstance;
 
     private SparseArray<JobServiceConnection> runningJobs = new SparseArray<JobServiceConnection>();
+    private HashMap<ComponentName, ServiceBinding> bindings = new HashMap<ComponentName, ServiceBinding>();
+    /**
+     * Jobs that are ready but waiting for a free slot, see {@link #runPendingJobs()}.
+     */
+    private SparseArray<JobStatus> pendingJobs = new SparseArray<JobStatus>();
+    /**
+     * The same jobs ordered by {@link #URGENCY}. Jobs are only removed from {@link #pendingJobs}
+     * when they stop waiting, the ones left here are skipped when they come up.
+     */
+    private PriorityQueue<JobStatus> pendingQueue = new PriorityQueue<JobStatus>(11, URGENCY);
+    /**
+     * The start id of the last command handled, the service is only stopped if no command has been
+     * sent since.
+     */
+    private int lastStartId;
+    /**
+     * Messages that arrived before the jobs were loaded from disk, they are handled in order once
+     * they are so the scheduler thread never blocks on the load. Null once the jobs are loaded.
+     * Only touched on the scheduler thread.
+     */
+    private List<Message> deferredMessages = new ArrayList<Message>();
+
+    /**
+     * Backs {@link JobScheduler#getStats()}.
+     */
+    public static JobSchedulerStats getStats() {
+        return new JobSchedulerStats(sTimeoutCount.get(), sForcedUnbindCount.get(),
+                sWakeLockHeldMillis.get());
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Start loading jobs in the background so they are ready by the time they are needed.
+        JobStore.initAndGet(this).whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                handler.post(handleDeferredMessages);
+            }
+        });
+        synchronized (JobSchedulerService.class) {
+            sInstance = this;
+        }
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         int what = intent.getIntExtra(EXTRA_MSG, -1);
-        Message message = Message.obtain(handler, what, intent);
-        handler.handleMessage(message);
+        Message.obtain(handler, what, startId, 0, intent).sendToTarget();
         return START_NOT_STICKY;
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (JobSchedulerService.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+        handler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Tells the scheduler that constraints have changed, so it should stop jobs that are no longer
+     * ready and start the ones that are. If the scheduler is already running this is posted to it
+     * directly, otherwise it is started. Either way the device is kept awake until the ready jobs
+     * have taken their own wake locks.
+     */
+    public static void runReadyJobs(Context context) {
+        int handoffId = acquireHandoffWakeLock(context);
+        synchronized (JobSchedulerService.class) {
+            if (sInstance != null) {
+                Message.obtain(sInstance.handler, MSG_RUN_READY_JOBS, 0, handoffId).sendToTarget();
+                return;
+            }
+        }
+        context.startService(new Intent(context, JobSchedulerService.class)
+                .putExtra(EXTRA_MSG, MSG_RUN_READY_JOBS)
+                .putExtra(EXTRA_HANDOFF_ID, handoffId));
+    }
+
+    /**
+     * @return The id to release the wake lock with once the signal has been handled.
+     */
+    private static int acquireHandoffWakeLock(Context context) {
+        PowerManager pm = (PowerManager) context.getApplicationContext()
+                .getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "JobSchedulerService");
+        wakeLock.setReferenceCounted(false);
+        wakeLock.acquire(HANDOFF_WAKE_LOCK_TIMEOUT_MILLIS);
+        synchronized (JobSchedulerService.class) {
+            int handoffId = sNextHandoffId++;
+            sHandoffWakeLocks.put(handoffId, wakeLock);
+            return handoffId;
+        }
+    }
+
+    private static void releaseHandoffWakeLock(int handoffId) {
+        PowerManager.WakeLock wakeLock;
+        synchronized (JobSchedulerService.class) {
+            wakeLock = sHandoffWakeLocks.get(handoffId);
+            sHandoffWakeLocks.remove(handoffId);
+        }
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
+    private void handleStartJobs(int[] jobIds, int count) {
+        for (int i = 0; i < count; i++) {
+            handleStartJob(jobIds[i]);
+        }
+    }
+
     private void handleStartJob(int jobId) {
-        if (runningJobs.get(jobId) != null) {
-            // Job already running!
+        if (runningJobs.get(jobId) != null || pendingJobs.get(jobId) != null) {
+            // Job already running or waiting to run!
             return;
         }
 
@@ -69,27 +218,66 @@ public class JobSchedulerService extends Service {
             return;
         }
 
-        Intent intent = new Intent();
-        intent.setComponent(job.getJob().getService());
+        if (runningJobs.size() >= JobScheduler.getConfig().getMaxConcurrentJobs()) {
+            pendingJobs.put(jobId, job);
+            pendingQueue.add(job);
+            return;
+        }
+        bindJob(job);
+    }
 
-        int flags = BIND_AUTO_CREATE;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            flags |= BIND_WAIVE_PRIORITY;
+    private void bindJob(JobStatus job) {
+        ComponentName component = job.getServiceComponent();
+        ServiceBinding binding = bindings.get(component);
+        if (binding == null) {
+            Intent intent = new Intent();
+            intent.setComponent(component);
+
+            int flags = BIND_AUTO_CREATE;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                flags |= BIND_WAIVE_PRIORITY;
+            }
+
+            binding = new ServiceBinding(component);
+            bindings.put(component, binding);
+            bindService(intent, binding, flags);
         }
 
-        JobServiceConnection connection = new JobServiceConnection(job);
+        JobServiceConnection connection = new JobServiceConnection(job, binding);
         runningJobs.put(job.getJobId(), connection);
-        bindService(intent, connection, flags);
+        long timeslice = getExecutionTimeslice(job);
+        // Long enough for the watchdog to clean up the job, the timeout is only a backstop.
+        connection.acquireWakeLock(timeslice + STOP_GRACE_MILLIS);
+        binding.add(connection);
+        // Started here instead of when the service connects so a service that never binds is
+        // also caught.
+        handler.postDelayed(connection.timesliceExpired, timeslice);
     }
 
-    private void handleStopJob(int jobId) {
-        JobServiceConnection connection = runningJobs.get(jobId);
-        if (connection != null) {
-            connection.stop(false);
+    private void handleStopJobs(int[] jobIds) {
+        if (jobIds == null) {
+            return;
+        }
+        boolean removedPending = false;
+        for (int jobId : jobIds) {
+            if (pendingJobs.get(jobId) != null) {
+                pendingJobs.remove(jobId);
+                removedPending = true;
+                continue;
+            }
+            JobServiceConnection connection = runningJobs.get(jobId);
+            if (connection != null) {
+                connection.stop(false);
+            }
+        }
+        if (removedPending) {
+            stopIfFinished();
         }
     }
 
     private void handleStopAll() {
+        pendingJobs.clear();
+        pendingQueue.clear();
         int size = runningJobs.size();
         for (int i = 0; i < size; i++) {
             int jobId = runningJobs.keyAt(i);
@@ -107,94 +295,455 @@ public class JobSchedulerService extends Service {
                 connection.stop(true);
             }
         }
+        // Queued jobs that are no longer ready will be started again when they are.
+        boolean droppedPending = false;
+        for (int i = pendingJobs.size() - 1; i >= 0; i--) {
+            if (!pendingJobs.valueAt(i).isReady()) {
+                pendingJobs.removeAt(i);
+                droppedPending = true;
+            }
+        }
+        if (droppedPending) {
+            stopIfFinished();
+        }
     }
 
-    private class JobServiceConnection implements ServiceConnection {
-        JobStatus job;
-        JobParameters jobParams;
+    private void handleRunReadyJobs() {
+        handleRecheckConstraints();
+
+        // Only jobs that were added or had a constraint change since the last time can have
+        // become ready.
+        JobStore jobStore = JobStore.initAndGet(this);
+        List<JobStatus> changedJobs = new ArrayList<JobStatus>();
+        synchronized (jobStore) {
+            jobStore.takeChangedJobs(changedJobs);
+        }
+        int[] readyJobs = new int[changedJobs.size()];
+        int readyCount = 0;
+        for (int i = 0; i < changedJobs.size(); i++) {
+            JobStatus job = changedJobs.get(i);
+            if (job.isReady()) {
+                readyJobs[readyCount++] = job.getJobId();
+            }
+        }
+
+        handleStartJobs(readyJobs, readyCount);
+        // None of them may still exist, make sure we don't keep running in that case.
+        stopIfFinished();
+    }
+
+    /**
+     * Starts queued jobs, most urgent first, until there are no more free slots.
+     */
+    private void runPendingJobs() {
+        JobStore jobStore = JobStore.initAndGet(this);
+        int maxConcurrentJobs = JobScheduler.getConfig().getMaxConcurrentJobs();
+        while (runningJobs.size() < maxConcurrentJobs && pendingJobs.size() > 0) {
+            JobStatus job = pendingQueue.poll();
+            if (pendingJobs.get(job.getJobId()) != job) {
+                // No longer waiting.
+                continue;
+            }
+            pendingJobs.remove(job.getJobId());
+
+            boolean stillScheduled;
+            synchronized (jobStore) {
+                stillScheduled = jobStore.containsJob(job);
+            }
+            if (stillScheduled && job.isReady()) {
+                bindJob(job);
+            }
+        }
+        if (pendingJobs.size() == 0) {
+            pendingQueue.clear();
+        }
+    }
+
+    private static long getExecutionTimeslice(JobStatus job) {
+        long timeslice = job.peekJob().getExecutionTimesliceMillis();
+        return timeslice != JobInfo.DEFAULT_EXECUTION_TIMESLICE
+                ? timeslice : JobScheduler.getConfig().getExecutionTimesliceMillis();
+    }
+
+    /**
+     * Orders jobs by earliest deadline, so jobs whose deadline has passed come first and jobs
+     * without one come last. Among jobs with the same deadline the ones that have failed fewer
+     * times go first, a job that keeps failing shouldn't hold up the others. Only uses fields that
+     * don't change while the job is queued so it can be kept in a {@link PriorityQueue}.
+     */
+    private static final Comparator<JobStatus> URGENCY = new Comparator<JobStatus>() {
+        @Override
+        public int compare(JobStatus lhs, JobStatus rhs) {
+            long lhsDeadline = lhs.getLatestRunTimeElapsed();
+            long rhsDeadline = rhs.getLatestRunTimeElapsed();
+            if (lhsDeadline != rhsDeadline) {
+                return lhsDeadline < rhsDeadline ? -1 : 1;
+            }
+            return lhs.getNumFailures() - rhs.getNumFailures();
+        }
+    };
+
+    /**
+     * A single binding to a job service, shared by all the jobs running on it. The service is
+     * unbound once the last of them finishes, or as soon as one of them doesn't stop when asked.
+     */
+    private class ServiceBinding implements ServiceConnection {
+        final ComponentName component;
+        final SparseArray<JobServiceConnection> jobs = new SparseArray<JobServiceConnection>();
         IJobService jobService;
-        boolean allowReschedule = true;
+        boolean startScheduled;
+
+        /**
+         * Jobs added while connected are started at the end of the current message, so all the
+         * jobs that became ready together are started together.
+         */
+        final Runnable startJobs = new Runnable() {
+            @Override
+            public void run() {
+                startScheduled = false;
+                startUnstartedJobs();
+            }
+        };
 
-        JobServiceConnection(final JobStatus job) {
-            this.job = job;
-            this.jobParams = new JobParameters(new IJobCallback.Stub() {
-                @Override
-                public void jobFinished(int jobId, boolean needsReschedule) throws RemoteException {
-                    finishJob(jobId, JobServiceConnection.this);
+        ServiceBinding(ComponentName component) {
+            this.component = component;
+        }
 
-                    if (allowReschedule) {
-                        if (needsReschedule || job.getJob().isPeriodic()) {
-                            rescheduleJob(job, needsReschedule);
-                        }
-                    }
-                    stopIfFinished();
+        void add(JobServiceConnection connection) {
+            jobs.put(connection.job.getJobId(), connection);
+            if (jobService != null && !startScheduled) {
+                // Already connected, reuse the binder.
+                startScheduled = true;
+                handler.post(startJobs);
+            }
+        }
+
+        void startUnstartedJobs() {
+            if (jobService == null) {
+                return;
+            }
+            List<JobServiceConnection> unstarted = new ArrayList<JobServiceConnection>();
+            for (int i = 0; i < jobs.size(); i++) {
+                JobServiceConnection connection = jobs.valueAt(i);
+                if (!connection.started) {
+                    unstarted.add(connection);
                 }
+            }
+            if (unstarted.isEmpty()) {
+                return;
+            }
+            JobCallback callback = new JobCallback();
+            if (unstarted.size() == 1) {
+                unstarted.get(0).start(callback);
+                return;
+            }
+            List<JobParameters> jobParams = new ArrayList<JobParameters>(unstarted.size());
+            for (JobServiceConnection connection : unstarted) {
+                jobParams.add(connection.prepareStart(callback));
+            }
+            try {
+                jobService.startJobs(jobParams);
+            } catch (Exception e) {
+                Log.e(TAG, "Error while starting jobs on: " + component);
+                throw new RuntimeException(e);
+            }
+        }
+
+        void remove(JobServiceConnection connection) {
+            int jobId = connection.job.getJobId();
+            if (jobs.get(jobId) != connection) {
+                return;
+            }
+            jobs.remove(jobId);
+            if (jobs.size() == 0) {
+                bindings.remove(component);
+                unbindService(this);
+            }
+        }
 
+        @Override
+        public void onServiceConnected(ComponentName name, final IBinder service) {
+            handler.post(new Runnable() {
                 @Override
-                public void acknowledgeStartMessage(int jobId, boolean workOngoing) throws RemoteException {
-                    if (!workOngoing) {
-                        finishJob(jobId, JobServiceConnection.this);
-                        stopIfFinished();
-                    }
+                public void run() {
+                    handleServiceConnected(service);
                 }
+            });
+        }
 
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            handler.post(new Runnable() {
                 @Override
-                public void acknowledgeStopMessage(int jobId, boolean reschedule) throws RemoteException {
-                    finishJob(jobId, JobServiceConnection.this);
+                public void run() {
+                    handleServiceDisconnected();
+                }
+            });
+        }
 
-                    if (allowReschedule) {
-                        if (reschedule || job.getJob().isPeriodic()) {
-                            rescheduleJob(job, reschedule);
-                        }
-                    }
-                    stopIfFinished();
+        private void handleServiceConnected(IBinder service) {
+            if (bindings.get(component) != this) {
+                // Already unbound.
+                return;
+            }
+            // For a service in this process this is the service's own stub, so calls on it go
+            // straight to the service without any parceling. A service running in another process
+            // gets a proxy instead.
+            jobService = IJobService.Stub.asInterface(service);
+            startUnstartedJobs();
+        }
+
+        private void handleServiceDisconnected() {
+            if (bindings.get(component) != this) {
+                return;
+            }
+            unbindAll(null);
+        }
+
+        /**
+         * Unbinds the service while jobs are still running on it. They are dropped the same as when
+         * the service dies and run again once they are ready, except for the given one, if any,
+         * which the caller has to finish.
+         */
+        void unbindAll(JobServiceConnection except) {
+            jobService = null;
+            List<JobServiceConnection> dropped = new ArrayList<JobServiceConnection>(jobs.size());
+            for (int i = 0; i < jobs.size(); i++) {
+                JobServiceConnection connection = jobs.valueAt(i);
+                if (connection == except) {
+                    continue;
                 }
-            }, job.getJobId(), job.getExtras(), !job.isConstraintsSatisfied());
+                runningJobs.remove(connection.job.getJobId());
+                connection.cancelTimeouts();
+                connection.jobParams = null;
+                dropped.add(connection);
+            }
+            jobs.clear();
+            bindings.remove(component);
+            unbindService(this);
+            runPendingJobs();
+            for (JobServiceConnection connection : dropped) {
+                connection.releaseWakeLock();
+            }
+            stopIfFinished();
         }
+    }
 
-        @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            jobService = (IJobService) service;
+    /**
+     * A job running on a {@link ServiceBinding}.
+     */
+    private class JobServiceConnection {
+        final JobStatus job;
+        final ServiceBinding binding;
+        JobParameters jobParams;
+        boolean allowReschedule = true;
+        boolean started;
+        boolean stopping;
+        PowerManager.WakeLock wakeLock;
+        long wakeLockAcquiredElapsed;
+
+        final Runnable timesliceExpired = new Runnable() {
+            @Override
+            public void run() {
+                sTimeoutCount.incrementAndGet();
+                Log.w(TAG, "Job ran past its timeslice, stopping: " + job.toShortString());
+                stop(true);
+            }
+        };
+
+        final Runnable stopGraceExpired = new Runnable() {
+            @Override
+            public void run() {
+                sForcedUnbindCount.incrementAndGet();
+                Log.w(TAG, "Job didn't finish after being stopped, unbinding: " + job.toShortString());
+                // Unbinding is the only way to stop it, and the binding is shared, so any other
+                // jobs on the service go with it.
+                binding.unbindAll(JobServiceConnection.this);
+                // Treat it as a failure so it backs off instead of running away again right away.
+                onFinished(true);
+            }
+        };
+
+        JobServiceConnection(JobStatus job, ServiceBinding binding) {
+            this.job = job;
+            this.binding = binding;
+        }
 
+        /**
+         * Marks the job as started and creates the parameters it is started with, which report back
+         * to the given callback.
+         */
+        JobParameters prepareStart(JobCallback callback) {
+            started = true;
+            callback.connections.put(job.getJobId(), this);
+            jobParams = new JobParameters(callback, job.getJobId(), job.getExtras(),
+                    !job.isConstraintsSatisfied());
+            return jobParams;
+        }
+
+        void start(JobCallback callback) {
+            prepareStart(callback);
             try {
-                jobService.startJob(jobParams);
+                binding.jobService.startJob(jobParams);
             } catch (Exception e) {
-                Log.e(TAG, "Error while starting job: " + job.getJob());
+                Log.e(TAG, "Error while starting job: " + job.peekJob());
                 throw new RuntimeException(e);
             }
         }
 
-        @Override
-        public void onServiceDisconnected(ComponentName name) {
-            runningJobs.remove(job.getJobId());
-            jobService = null;
-            jobParams = null;
+        void onFinished(boolean reschedule) {
+            finishJob(job.getJobId(), this);
+
+            if (allowReschedule) {
+                if (reschedule || job.peekJob().isPeriodic()) {
+                    rescheduleJob(job, reschedule);
+                }
+            }
             stopIfFinished();
         }
 
         void stop(boolean allowReschedule) {
-            if (jobService != null) {
-                this.allowReschedule = allowReschedule;
+            this.allowReschedule = allowReschedule;
+            if (!stopping) {
+                stopping = true;
+                handler.removeCallbacks(timesliceExpired);
+                handler.postDelayed(stopGraceExpired, STOP_GRACE_MILLIS);
+            }
+            if (binding.jobService != null && jobParams != null) {
                 try {
-                    jobService.stopJob(jobParams);
+                    binding.jobService.stopJob(jobParams);
                 } catch (Exception e) {
                     Log.e(TAG, "Error while stopping job: " + job.getJobId());
                     throw new RuntimeException(e);
                 }
             }
         }
+
+        void cancelTimeouts() {
+            handler.removeCallbacks(timesliceExpired);
+            handler.removeCallbacks(stopGraceExpired);
+        }
+
+        void acquireWakeLock(long timeoutMillis) {
+            PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
+            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, job.getTag());
+            wakeLock.setReferenceCounted(false);
+            wakeLock.acquire(timeoutMillis);
+            wakeLockAcquiredElapsed = SystemClock.elapsedRealtime();
+        }
+
+        void releaseWakeLock() {
+            if (wakeLock == null) {
+                return;
+            }
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+            wakeLock = null;
+            long heldMillis = SystemClock.elapsedRealtime() - wakeLockAcquiredElapsed;
+            sWakeLockHeldMillis.addAndGet(heldMillis);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Held wake lock for " + heldMillis + "ms: " + job.toShortString());
+            }
+        }
     }
 
-    static void startJob(Context context, int jobId) {
-        context.startService(new Intent(context, JobSchedulerService.class)
-                .putExtra(EXTRA_MSG, MSG_START_JOB)
-                .putExtra(EXTRA_JOB_ID, jobId));
+    /**
+     * The callback for the jobs started together on a service, the job id picks which one it is
+     * for. Each start gets a new one, so a late call from an earlier run of a job, one that was
+     * unbound or canceled and scheduled again, is ignored instead of finishing the current run.
+     */
+    private class JobCallback extends IJobCallback.Stub {
+        final SparseArray<JobServiceConnection> connections = new SparseArray<JobServiceConnection>();
+
+        /**
+         * @return The connection for the job if it is still running from this start, otherwise
+         * null.
+         */
+        JobServiceConnection get(int jobId) {
+            JobServiceConnection connection = connections.get(jobId);
+            return connection != null && runningJobs.get(jobId) == connection ? connection : null;
+        }
+
+        @Override
+        public void jobFinished(final int jobId, final boolean needsReschedule) throws RemoteException {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    JobServiceConnection connection = get(jobId);
+                    if (connection != null) {
+                        connection.onFinished(needsReschedule);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void acknowledgeStartMessage(final int jobId, final boolean workOngoing) throws RemoteException {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    JobServiceConnection connection = get(jobId);
+                    if (connection != null && !workOngoing) {
+                        finishJob(jobId, connection);
+                        stopIfFinished();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void acknowledgeStopMessage(final int jobId, final boolean reschedule) throws RemoteException {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    JobServiceConnection connection = get(jobId);
+                    if (connection != null) {
+                        connection.onFinished(reschedule);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void jobsFinished(final int[] jobIds, final boolean needsReschedule) throws RemoteException {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (int jobId : jobIds) {
+                        JobServiceConnection connection = get(jobId);
+                        if (connection != null) {
+                            connection.onFinished(needsReschedule);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void acknowledgeStartMessages(final int[] jobIds, final boolean workOngoing) throws RemoteException {
+            if (workOngoing) {
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (int jobId : jobIds) {
+                        JobServiceConnection connection = get(jobId);
+                        if (connection != null) {
+                            finishJob(jobId, connection);
+                        }
+                    }
+                    stopIfFinished();
+                }
+            });
+        }
     }
 
-    static void stopJob(Context context, int jobId) {
+    static void stopJobs(Context context, int... jobIds) {
         context.startService(new Intent(context, JobSchedulerService.class)
-                .putExtra(EXTRA_MSG, MSG_STOP_JOB)
-                .putExtra(EXTRA_JOB_ID, jobId));
+                .putExtra(EXTRA_MSG, MSG_STOP_JOBS)
+                .putExtra(EXTRA_JOB_IDS, jobIds));
     }
 
     static void stopAll(Context context) {
@@ -202,20 +751,30 @@ public class JobSchedulerService extends Service {
                 .putExtra(EXTRA_MSG, MSG_STOP_ALL));
     }
 
-    static void recheckConstraints(Context context) {
-        context.startService(new Intent(context, JobSchedulerService.class)
-                .putExtra(EXTRA_MSG, MSG_RECHECK_CONSTRAINTS));
-    }
-
-    private void finishJob(int jobId, JobServiceConnection connection) {
-        if (runningJobs.get(jobId) != null) {
-            unbindService(connection);
+    private void finishJob(int jobId, final JobServiceConnection connection) {
+        if (runningJobs.get(jobId) == connection) {
+            runningJobs.remove(jobId);
         }
-        runningJobs.remove(jobId);
+        connection.cancelTimeouts();
+        connection.binding.remove(connection);
         JobStore jobStore = JobStore.initAndGet(this);
         synchronized (jobStore) {
             jobStore.remove(connection.job);
         }
+        runPendingJobs();
+        // Only after the next jobs have taken their wake locks and the job is removed on disk, so
+        // the device can't sleep in between and run it again after a reboot.
+        jobStore.whenPersisted(new Runnable() {
+            @Override
+            public void run() {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.releaseWakeLock();
+                    }
+                });
+            }
+        });
     }
 
     private void rescheduleJob(JobStatus job, boolean wasFailure) {
@@ -253,13 +812,13 @@ public class JobSchedulerService extends Service {
         }
         
         final long elapsedNowMillis = SystemClock.elapsedRealtime();
-        final JobInfo jobInfo = job.getJob();
+        final JobInfo jobInfo = job.peekJob();
 
         final long initialBackoffMillis = jobInfo.getInitialBackoffMillis();
         final int backoffAttemps = job.getNumFailures() + 1;
 
         long delayMillis;
-        switch (job.getJob().getBackoffPolicy()) {
+        switch (jobInfo.getBackoffPolicy()) {
             case JobInfo.BACKOFF_POLICY_LINEAR:
                 delayMillis = initialBackoffMillis * backoffAttemps;
                 break;
@@ -286,44 +845,72 @@ public class JobSchedulerService extends Service {
         final long elapsedNow = SystemClock.elapsedRealtime();
         // Compute how much of the period is remaining.
         long runEarly = Math.max(job.getLatestRunTimeElapsed() - elapsedNow, 0);
-        long newEarliestRunTimeElapsed = elapsedNow + runEarly;
-        long period = job.getJob().getIntervalMillis();
-        long newLatestRuntimeElapsed = newEarliestRunTimeElapsed + period;
+        long period = job.peekJob().getIntervalMillis();
+        long flex = job.peekJob().getFlexMillis();
+        long newLatestRuntimeElapsed = elapsedNow + runEarly + period;
+        // The job may run anywhere in the last flex of the next period.
+        long newEarliestRunTimeElapsed = newLatestRuntimeElapsed - flex;
         return new JobStatus(job, newEarliestRunTimeElapsed,
                 newLatestRuntimeElapsed, 0 /* backoffAttempt */);
     }
 
     private void stopIfFinished() {
-        if (runningJobs.size() == 0) {
+        if (runningJobs.size() == 0 && pendingJobs.size() == 0) {
             JobServiceCompat.jobsFinished(this);
-            stopSelf();
+            synchronized (JobSchedulerService.class) {
+                // A receiver may have posted to us directly, that doesn't count as a start.
+                if (!handler.hasMessages(MSG_RUN_READY_JOBS) && stopSelfResult(lastStartId)) {
+                    sInstance = null;
+                }
+            }
         }
     }
 
-    private final Handler handler = new Handler(Looper.getMainLooper()) {
+    private final Runnable handleDeferredMessages = new Runnable() {
+        @Override
+        public void run() {
+            List<Message> messages = deferredMessages;
+            deferredMessages = null;
+            for (int i = 0; i < messages.size(); i++) {
+                Message msg = messages.get(i);
+                handleCommand(msg);
+                msg.recycle();
+            }
+        }
+    };
+
+    private final Handler handler = new Handler(SchedulerThread.get().getLooper()) {
         @Override
         public void handleMessage(Message msg) {
-            Intent intent = (Intent) msg.obj;
-            switch (msg.what) {
-                case MSG_START_JOB: {
-                    int jobId = intent.getIntExtra(EXTRA_JOB_ID, 0);
-                    handleStartJob(jobId);
-                    break;
-                }
-                case MSG_STOP_JOB: {
-                    int jobId = intent.getIntExtra(EXTRA_JOB_ID, 0);
-                    handleStopJob(jobId);
-                    break;
-                }
-                case MSG_STOP_ALL: {
-                    handleStopAll();
-                    break;
-                }
-                case MSG_RECHECK_CONSTRAINTS: {
-                    handleRecheckConstraints();
-                    break;
-                }
+            if (deferredMessages != null) {
+                deferredMessages.add(Message.obtain(msg));
+                return;
             }
+            handleCommand(msg);
         }
     };
+
+    private void handleCommand(Message msg) {
+        Intent intent = (Intent) msg.obj;
+        if (intent != null) {
+            lastStartId = msg.arg1;
+        }
+        switch (msg.what) {
+            case MSG_STOP_JOBS: {
+                handleStopJobs(intent.getIntArrayExtra(EXTRA_JOB_IDS));
+                break;
+            }
+            case MSG_STOP_ALL: {
+                handleStopAll();
+                break;
+            }
+            case MSG_RUN_READY_JOBS: {
+                handleRunReadyJobs();
+                // The jobs that started hold their own wake locks now.
+                releaseHandoffWakeLock(intent != null
+                        ? intent.getIntExtra(EXTRA_HANDOFF_ID, 0) : msg.arg2);
+                break;
+            }
+        }
+    }
 }
@@ -3,11 +3,6 @@ package me.tatarka.support.internal.job;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
-import android.os.PowerManager;
-import android.support.v4.content.WakefulBroadcastReceiver;
-
-import java.util.ArrayList;
-import java.util.List;
 
 import me.tatarka.support.internal.util.ArraySet;
 import me.tatarka.support.job.JobInfo;
@@ -29,17 +24,13 @@ public class JobServiceCompat extends IntentService {
     private static final String EXTRA_MSG = "EXTRA_MSG";
     private static final String EXTRA_JOB = "EXTRA_JOB";
     private static final String EXTRA_JOB_ID = "EXTRA_JOB_ID";
-    private static final String EXTRA_RELEASE_WAKE_LOCK = "EXTRA_RELEASE_WAKE_LOCK";
 
     private static final int MSG_SCHEDULE_JOB = 0;
     private static final int MSG_CANCEL_JOB = 1;
     private static final int MSG_CANCEL_ALL = 2;
-    private static final int MSG_RUN_JOBS = 3;
     private static final int MSG_JOBS_FINISHED = 4;
     private static final int MSG_BOOT = 5;
 
-    private static PowerManager.WakeLock WAKE_LOCK;
-
     public JobServiceCompat() {
         super("JobServiceCompat");
     }
@@ -47,11 +38,15 @@ public class JobServiceCompat extends IntentService {
     @Override
     public void onCreate() {
         super.onCreate();
-        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        // Start loading jobs in the background so they are ready by the time they are needed.
+        JobStore.initAndGet(this);
+    }
 
-        if (WAKE_LOCK == null) {
-            WAKE_LOCK = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "JobServiceCompat");
-        }
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // We are out of work, don't leave changes sitting in the write-behind window.
+        JobStore.initAndGet(this).flush();
     }
 
     @Override
@@ -72,14 +67,6 @@ public class JobServiceCompat extends IntentService {
                 handleCancelAll();
                 break;
             }
-            case MSG_RUN_JOBS: {
-                handleRunJobs();
-                boolean releaseWakeLock = intent.getBooleanExtra(EXTRA_RELEASE_WAKE_LOCK, false);
-                if (releaseWakeLock) {
-                    WakefulBroadcastReceiver.completeWakefulIntent(intent);
-                }
-                break;
-            }
             case MSG_BOOT: {
                 handleBoot();
             }
@@ -129,7 +116,7 @@ public class JobServiceCompat extends IntentService {
             JobStatus job = jobStore.getJobByJobId(jobId);
             jobStore.remove(job);
         }
-        JobSchedulerService.stopJob(this, jobId);
+        JobSchedulerService.stopJobs(this, jobId);
     }
 
     private void handleCancelAll() {
@@ -145,37 +132,6 @@ public class JobServiceCompat extends IntentService {
         JobSchedulerService.stopAll(this);
     }
 
-    private void handleRunJobs() {
-        JobSchedulerService.recheckConstraints(this);
-
-        JobStore jobStore = JobStore.initAndGet(this);
-        List<Integer> jobsToRun = new ArrayList<Integer>();
-        boolean noJobs = false;
-        synchronized (jobStore) {
-            ArraySet<JobStatus> jobs = jobStore.getJobs();
-            for (int i = 0; i < jobs.size(); i++) {
-                JobStatus job = jobs.valueAt(i);
-                if (job.isReady()) {
-                    jobsToRun.add(job.getJobId());
-                }
-            }
-            if (jobs.isEmpty()) {
-                noJobs = true;
-            }
-        }
-
-        if (!jobsToRun.isEmpty()) {
-            WAKE_LOCK.acquire();
-            for (int jobId : jobsToRun) {
-                JobSchedulerService.startJob(this, jobId);
-            }
-        }
-
-        if (noJobs) {
-            handleJobsFinished();
-        }
-    }
-
     private void handleBoot() {
         ControllerPrefs.getInstance(this).clear();
 
@@ -191,36 +147,17 @@ public class JobServiceCompat extends IntentService {
     private void handleJobsFinished() {
         // Check if we can turn off any broadcast receivers.
         JobStore jobStore = JobStore.initAndGet(this);
-        boolean hasNetworkConstraint = false;
-        boolean hasPowerConstraint = false;
-        boolean hasIdleConstraint = false;
-        boolean hasBootConstraint = false;
+        boolean hasNetworkConstraint;
+        boolean hasPowerConstraint;
+        boolean hasIdleConstraint;
+        boolean hasBootConstraint;
 
         synchronized (jobStore) {
-            ArraySet<JobStatus> jobs = jobStore.getJobs();
-            for (int i = 0; i < jobs.size(); i++) {
-                JobStatus job = jobs.valueAt(i);
-
-                if (job.hasConnectivityConstraint() || job.hasUnmeteredConstraint()) {
-                    hasNetworkConstraint = true;
-                }
-
-                if (job.hasChargingConstraint()) {
-                    hasPowerConstraint = true;
-                }
-
-                if (job.hasIdleConstraint()) {
-                    hasIdleConstraint = true;
-                }
-
-                if (job.isPersisted()) {
-                    hasBootConstraint = true;
-                }
-
-                if (hasNetworkConstraint && hasPowerConstraint && hasBootConstraint && hasIdleConstraint) {
-                    break;
-                }
-            }
+            hasNetworkConstraint = !jobStore.getConnectivityJobs().isEmpty()
+                    || !jobStore.getUnmeteredJobs().isEmpty();
+            hasPowerConstraint = !jobStore.getChargingJobs().isEmpty();
+            hasIdleConstraint = !jobStore.getIdleJobs().isEmpty();
+            hasBootConstraint = !jobStore.getPersistedJobs().isEmpty();
         }
 
         if (!hasNetworkConstraint) {
@@ -238,11 +175,6 @@ public class JobServiceCompat extends IntentService {
         if (!hasBootConstraint) {
             ReceiverUtils.disable(this, BootReceiver.class);
         }
-
-        // Alright we're done, you can go to sleep now.
-        if (WAKE_LOCK.isHeld()) {
-            WAKE_LOCK.release();
-        }
     }
 
     private void unscheduleJob(int jobId) {
@@ -275,12 +207,6 @@ public class JobServiceCompat extends IntentService {
                         .putExtra(EXTRA_MSG, MSG_JOBS_FINISHED));
     }
 
-    public static Intent maybeRunJobs(Context context) {
-        return new Intent(context, JobServiceCompat.class)
-                .putExtra(EXTRA_MSG, MSG_RUN_JOBS)
-                .putExtra(EXTRA_RELEASE_WAKE_LOCK, true);
-    }
-
     public static Intent bootIntent(Context context) {
         return new Intent(context, JobServiceCompat.class)
                 .putExtra(EXTRA_MSG, MSG_BOOT);
@@ -22,30 +22,48 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.support.v4.util.AtomicFile;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.Xml;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import me.tatarka.support.internal.util.ArraySet;
-import me.tatarka.support.internal.util.FastXmlSerializer;
+import me.tatarka.support.internal.util.BinaryUtils;
+import me.tatarka.support.internal.util.CopyOnWriteSparseArray;
 import me.tatarka.support.job.JobInfo;
+import me.tatarka.support.job.JobScheduler;
+import me.tatarka.support.job.JobSchedulerConfig;
 import me.tatarka.support.internal.receivers.JobStatus;
+import me.tatarka.support.internal.receivers.TimerHeap;
+import me.tatarka.support.internal.receivers.TimerQueue;
+import me.tatarka.support.internal.receivers.TimingWheel;
 import me.tatarka.support.os.PersistableBundle;
 import me.tatarka.support.internal.IoThread;
 
@@ -54,6 +72,16 @@ import me.tatarka.support.internal.IoThread;
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  * <p/>
+ * Persisted state is a snapshot file plus an append-only journal of add/remove/replace records.
+ * Each mutation only appends a record, and once the journal grows past
+ * {@link #MAX_JOURNAL_BYTES} it is folded back into a fresh snapshot. On load the journal is
+ * replayed on top of the snapshot it was started from.
+ * <p/>
+ * Jobs are loaded asynchronously on the io thread. Mutations made before the load finishes are
+ * applied right away and take precedence over what is on disk, reads block until the load is
+ * finished. Anything that runs on the main thread must defer its reads with
+ * {@link #whenLoaded(Runnable)} instead.
+ * <p/>
  * Note on locking:
  * All callers to this class must <strong>lock on the class object they are calling</strong>.
  * This is important b/c {@link WriteJobsMapToDiskRunnable}
@@ -66,20 +94,94 @@ public class JobStore {
     private static final String TAG = "JobStore";
 
     /**
-     * Threshold to adjust how often we want to write to the db.
+     * Once the journal is larger than this it is compacted into a new snapshot.
      */
-    private static final int MAX_OPS_BEFORE_WRITE = 1;
+    private static final int MAX_JOURNAL_BYTES = 64 * 1024;
     final ArraySet<JobStatus> mJobSet;
+    /**
+     * Index of {@link #mJobSet} by job id, always kept in sync with it. The writer takes a snapshot
+     * of this to know what to write out.
+     */
+    final CopyOnWriteSparseArray<JobStatus> mJobsById;
+    /**
+     * Subsets of {@link #mJobSet} by constraint so controllers only have to visit the jobs they
+     * care about. Always kept in sync with it.
+     */
+    final ArraySet<JobStatus> mConnectivityJobs = new ArraySet<JobStatus>();
+    final ArraySet<JobStatus> mUnmeteredJobs = new ArraySet<JobStatus>();
+    final ArraySet<JobStatus> mChargingJobs = new ArraySet<JobStatus>();
+    final ArraySet<JobStatus> mIdleJobs = new ArraySet<JobStatus>();
+    final ArraySet<JobStatus> mPersistedJobs = new ArraySet<JobStatus>();
+    /**
+     * Jobs that were added or had a constraint change since the scheduler last checked whether they
+     * are ready, so it doesn't have to check every job. A subset of {@link #mJobSet}.
+     */
+    final ArraySet<JobStatus> mChangedJobs = new ArraySet<JobStatus>();
+    /**
+     * Jobs waiting on their delay or deadline ordered by time. Unlike the other subsets, the time
+     * controller removes jobs from these once their time constraint is satisfied. These are heaps
+     * unless {@link JobSchedulerConfig#isUseTimingWheel()} was set when the store was created.
+     */
+    final TimerQueue mDelayQueue;
+    final TimerQueue mDeadlineQueue;
     final Context mContext;
 
-    private int mDirtyOperations;
-
     private static final Object sSingletonLock = new Object();
+    private final File mJobDir;
     private final AtomicFile mJobsFile;
+    /**
+     * The version 0 xml job file, only read to migrate it to {@link #mJobsFile}.
+     */
+    private final AtomicFile mLegacyJobsFile;
+    private final File mJournalFile;
+    /**
+     * Extras too large to store inline, only written to on the io thread.
+     */
+    private final ExtrasBlobStore mExtrasBlobs;
+    /**
+     * Generation of the current snapshot, the journal is only replayed on top of the snapshot with
+     * the same generation. Only touched on the io thread after construction.
+     */
+    private int mJournalGeneration;
+    /**
+     * Size of the valid part of the journal. Only touched on the io thread after construction.
+     */
+    private long mJournalBytes;
+    /**
+     * The boot and wall clock anchor run times are written against, see {@link TimeBase}. Only
+     * touched on the io thread, use {@link #getTimeBase()}.
+     */
+    private TimeBase mTimeBase;
     /**
      * Handler backed by IoThread for writing to disk.
      */
     private final Handler mIoHandler = IoThread.getHandler();
+    private final Runnable mWriteRunnable = new WriteJobsMapToDiskRunnable();
+    private final ReadJobMapFromDiskRunnable mReadRunnable;
+    /**
+     * Whether the jobs on disk have been merged into {@link #mJobSet}. Guarded by JobStore.this.
+     */
+    private boolean mLoaded;
+    /**
+     * Job ids added or removed before the load finished, these jobs are skipped when merging in
+     * the jobs from disk. Guarded by JobStore.this.
+     */
+    private SparseBooleanArray mTouchedBeforeLoad = new SparseBooleanArray();
+    private boolean mClearedBeforeLoad;
+    private List<Runnable> mLoadedCallbacks = new ArrayList<Runnable>();
+    /**
+     * Records waiting for the write-behind window to pass, guarded by JobStore.this.
+     */
+    private List<JournalRecord> mPendingRecords = new ArrayList<JournalRecord>();
+    private boolean mCompactRequested;
+    private boolean mWriteScheduled;
+    /**
+     * Number of mutations made, and how many of those are known to be on disk. Used by
+     * {@link #whenPersisted(Runnable)}. Guarded by JobStore.this.
+     */
+    private long mMutationCount;
+    private long mPersistedCount;
+    private List<PersistedCallback> mPersistedCallbacks = new ArrayList<PersistedCallback>();
     private static JobStore sSingleton;
 
     public static JobStore initAndGet(Context context) {
@@ -92,36 +194,65 @@ public class JobStore {
     }
 
     /**
-     * Construct the instance of the job store. This results in a blocking read from disk.
+     * @return A new store that keeps its files in the given directory, for tests.
+     */
+    public static JobStore initAndGetForTesting(Context context, File dataDir) {
+        return new JobStore(context, dataDir);
+    }
+
+    /**
+     * Construct the instance of the job store. This starts reading the jobs from disk on the io
+     * thread but does not block.
      */
     private JobStore(Context context, File dataDir) {
         mContext = context;
-        mDirtyOperations = 0;
 
         File systemDir = new File(dataDir, "system");
         File jobDir = new File(systemDir, "job");
-        jobDir.mkdirs();
-        mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJobDir = jobDir;
+        mJobsFile = new AtomicFile(new File(jobDir, "jobs.bin"));
+        mLegacyJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJournalFile = new File(jobDir, "jobs.journal");
+        mExtrasBlobs = new ExtrasBlobStore(new File(jobDir, "extras"));
 
         mJobSet = new ArraySet<JobStatus>();
+        mJobsById = new CopyOnWriteSparseArray<JobStatus>();
+        if (JobScheduler.getConfig().isUseTimingWheel()) {
+            long nowElapsed = SystemClock.elapsedRealtime();
+            mDelayQueue = new TimingWheel(TimerQueue.TYPE_DELAY, nowElapsed);
+            mDeadlineQueue = new TimingWheel(TimerQueue.TYPE_DEADLINE, nowElapsed);
+        } else {
+            mDelayQueue = new TimerHeap(TimerQueue.TYPE_DELAY);
+            mDeadlineQueue = new TimerHeap(TimerQueue.TYPE_DEADLINE);
+        }
 
-        readJobMapFromDisk(mJobSet);
+        mReadRunnable = new ReadJobMapFromDiskRunnable();
+        mIoHandler.post(mReadRunnable);
     }
 
     /**
-     * Add a job to the master list, persisting it if necessary. If the JobStatus already exists,
-     * it will be replaced.
+     * Add a job to the master list, persisting it if necessary. If a JobStatus with the same job id
+     * already exists, it will be replaced.
      *
      * @param jobStatus Job to add.
      * @return Whether or not an equivalent JobStatus was replaced by this operation.
      */
     public boolean add(JobStatus jobStatus) {
-        boolean replaced = mJobSet.remove(jobStatus);
-        mJobSet.add(jobStatus);
+        final int jobId = jobStatus.getJobId();
+        touchBeforeLoadLocked(jobId);
+        JobStatus existing = mJobsById.get(jobId);
+        boolean replaced = existing != null;
+        if (replaced) {
+            untrackJobLocked(existing);
+            if (existing != jobStatus && !existing.isPersisted()) {
+                unmarkForBootSession(existing);
+            }
+        }
+        trackJobLocked(jobStatus);
         if (!jobStatus.isPersisted()) {
             markForBootSession(jobStatus);
         }
-        maybeWriteStatusToDiskAsync();
+        appendToJournalAsync(replaced ? JOURNAL_OP_REPLACE : JOURNAL_OP_ADD, jobStatus);
         return replaced;
     }
 
@@ -129,20 +260,17 @@ public class JobStore {
      * Whether this jobStatus object already exists in the JobStore.
      */
     public boolean containsJobId(int jobId) {
-        for (int i = mJobSet.size() - 1; i >= 0; i--) {
-            JobStatus ts = mJobSet.valueAt(i);
-            if (ts.matches(jobId)) {
-                return true;
-            }
-        }
-        return false;
+        ensureLoadedLocked();
+        return mJobsById.indexOfKey(jobId) >= 0;
     }
 
     boolean containsJob(JobStatus jobStatus) {
+        ensureLoadedLocked();
         return mJobSet.contains(jobStatus);
     }
 
     public int size() {
+        ensureLoadedLocked();
         return mJobSet.size();
     }
 
@@ -152,18 +280,22 @@ public class JobStore {
      * @return Whether or not the job existed to be removed.
      */
     public boolean remove(JobStatus jobStatus) {
-        boolean removed = mJobSet.remove(jobStatus);
+        boolean removed = untrackJobLocked(jobStatus);
         if (!removed) {
             return false;
         }
+        touchBeforeLoadLocked(jobStatus.getJobId());
         if (!jobStatus.isPersisted()) {
             unmarkForBootSession(jobStatus);
         }
-        maybeWriteStatusToDiskAsync();
+        appendToJournalAsync(JOURNAL_OP_REMOVE, jobStatus);
         return removed;
     }
 
     public void clear() {
+        if (!mLoaded) {
+            mClearedBeforeLoad = true;
+        }
         for (int i = 0; i < mJobSet.size(); i++) {
             JobStatus jobStatus = mJobSet.valueAt(i);
             if (!jobStatus.isPersisted()) {
@@ -171,7 +303,18 @@ public class JobStore {
             }
         }
         mJobSet.clear();
-        maybeWriteStatusToDiskAsync();
+        mJobsById.clear();
+        mConnectivityJobs.clear();
+        mUnmeteredJobs.clear();
+        mChargingJobs.clear();
+        mIdleJobs.clear();
+        mPersistedJobs.clear();
+        mChangedJobs.clear();
+        mDelayQueue.clear();
+        mDeadlineQueue.clear();
+        // An empty snapshot is cheaper than a journal record per job.
+        mPendingRecords.clear();
+        compactAsync();
     }
 
     /**
@@ -179,27 +322,160 @@ public class JobStore {
      * @return the JobStatus that matches the provided uId and jobId, or null if none found.
      */
     public JobStatus getJobByJobId(int jobId) {
-        Iterator<JobStatus> it = mJobSet.iterator();
-        while (it.hasNext()) {
-            JobStatus ts = it.next();
-            if (ts.matches(jobId)) {
-                return ts;
-            }
-        }
-        return null;
+        ensureLoadedLocked();
+        return mJobsById.get(jobId);
     }
 
     /**
      * @return The live array of JobStatus objects.
      */
     public ArraySet<JobStatus> getJobs() {
+        ensureLoadedLocked();
         return mJobSet;
     }
 
     /**
-     * Version of the db schema.
+     * @return The live array of jobs that require any network connection.
+     */
+    public ArraySet<JobStatus> getConnectivityJobs() {
+        ensureLoadedLocked();
+        return mConnectivityJobs;
+    }
+
+    /**
+     * @return The live array of jobs that require an unmetered network connection.
+     */
+    public ArraySet<JobStatus> getUnmeteredJobs() {
+        ensureLoadedLocked();
+        return mUnmeteredJobs;
+    }
+
+    /**
+     * @return The live array of jobs that require the device to be charging.
+     */
+    public ArraySet<JobStatus> getChargingJobs() {
+        ensureLoadedLocked();
+        return mChargingJobs;
+    }
+
+    /**
+     * @return The live array of jobs that require the device to be idle.
+     */
+    public ArraySet<JobStatus> getIdleJobs() {
+        ensureLoadedLocked();
+        return mIdleJobs;
+    }
+
+    /**
+     * @return The live array of jobs that are persisted across reboots.
+     */
+    public ArraySet<JobStatus> getPersistedJobs() {
+        ensureLoadedLocked();
+        return mPersistedJobs;
+    }
+
+    /**
+     * @return The live queue of jobs waiting on their delay, keyed by earliest run time.
+     */
+    public TimerQueue getDelayQueue() {
+        ensureLoadedLocked();
+        return mDelayQueue;
+    }
+
+    /**
+     * @return The live queue of jobs waiting on their deadline, keyed by deadline.
      */
-    private static final int JOBS_FILE_VERSION = 0;
+    public TimerQueue getDeadlineQueue() {
+        ensureLoadedLocked();
+        return mDeadlineQueue;
+    }
+
+    /**
+     * Has the scheduler check whether the job is ready the next time it runs ready jobs. Controllers
+     * call this for every job they change a constraint on.
+     */
+    public void markConstraintsChanged(JobStatus jobStatus) {
+        if (mJobSet.contains(jobStatus)) {
+            mChangedJobs.add(jobStatus);
+        }
+    }
+
+    /**
+     * Moves the jobs marked by {@link #markConstraintsChanged(JobStatus)}, and the ones added since
+     * the last call, into the given list.
+     */
+    public void takeChangedJobs(List<JobStatus> out) {
+        ensureLoadedLocked();
+        for (int i = 0; i < mChangedJobs.size(); i++) {
+            out.add(mChangedJobs.valueAt(i));
+        }
+        mChangedJobs.clear();
+    }
+
+    private void trackJobLocked(JobStatus jobStatus) {
+        mJobSet.add(jobStatus);
+        mChangedJobs.add(jobStatus);
+        mJobsById.put(jobStatus.getJobId(), jobStatus);
+        if (jobStatus.hasConnectivityConstraint()) {
+            mConnectivityJobs.add(jobStatus);
+        }
+        if (jobStatus.hasUnmeteredConstraint()) {
+            mUnmeteredJobs.add(jobStatus);
+        }
+        if (jobStatus.hasChargingConstraint()) {
+            mChargingJobs.add(jobStatus);
+        }
+        if (jobStatus.hasIdleConstraint()) {
+            mIdleJobs.add(jobStatus);
+        }
+        if (jobStatus.hasTimingDelayConstraint() && !jobStatus.timeDelayConstraintSatisfied.get()) {
+            mDelayQueue.add(jobStatus);
+        }
+        if (jobStatus.hasDeadlineConstraint() && !jobStatus.deadlineConstraintSatisfied.get()) {
+            mDeadlineQueue.add(jobStatus);
+        }
+        if (jobStatus.isPersisted()) {
+            mPersistedJobs.add(jobStatus);
+        }
+    }
+
+    private boolean untrackJobLocked(JobStatus jobStatus) {
+        if (!mJobSet.remove(jobStatus)) {
+            return false;
+        }
+        mJobsById.remove(jobStatus.getJobId());
+        mConnectivityJobs.remove(jobStatus);
+        mUnmeteredJobs.remove(jobStatus);
+        mChargingJobs.remove(jobStatus);
+        mIdleJobs.remove(jobStatus);
+        mPersistedJobs.remove(jobStatus);
+        mChangedJobs.remove(jobStatus);
+        mDelayQueue.remove(jobStatus);
+        mDeadlineQueue.remove(jobStatus);
+        return true;
+    }
+
+    /**
+     * Version of the db schema. Version 0 was xml, version 1 is the binary format described in
+     * {@link #writeJobsMapImpl}.
+     */
+    private static final int JOBS_FILE_VERSION = 1;
+    private static final int LEGACY_XML_JOBS_FILE_VERSION = 0;
+    private static final int JOBS_FILE_MAGIC = 0x4a534a42; // "JSJB"
+    /**
+     * Flags for the binary job record, see {@link #writeJobToBinary}.
+     */
+    private static final int FLAG_CHARGING = 1;
+    private static final int FLAG_IDLE = 1 << 1;
+    private static final int FLAG_PERSISTED = 1 << 2;
+    private static final int FLAG_PERIODIC = 1 << 3;
+    private static final int FLAG_DELAY = 1 << 4;
+    private static final int FLAG_DEADLINE = 1 << 5;
+    private static final int FLAG_BACKOFF = 1 << 6;
+    private static final int FLAG_EXTRAS = 1 << 7;
+    private static final int FLAG_EXTRAS_BLOB = 1 << 8;
+    private static final int FLAG_TIMESLICE = 1 << 9;
+    private static final int FLAG_FLEX = 1 << 10;
     /**
      * Tag corresponds to constraints this job needs.
      */
@@ -212,192 +488,854 @@ public class JobStore {
     private static final String XML_TAG_EXTRAS = "extras";
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
-     *
-     * @return Whether the operation was successful. This will only fail for e.g. if the system is
-     * low on storage. If this happens, we continue as normal
+     * Version of the journal format, a journal with a different version is discarded.
+     */
+    private static final int JOURNAL_VERSION = 1;
+    private static final int JOURNAL_MAGIC = 0x4a534a4c; // "JSJL"
+    /**
+     * Magic, version, generation, time base.
+     */
+    private static final int JOURNAL_HEADER_BYTES = 36;
+    private static final byte JOURNAL_OP_ADD = 0;
+    private static final byte JOURNAL_OP_REMOVE = 1;
+    private static final byte JOURNAL_OP_REPLACE = 2;
+
+    /**
+     * Every time the state changes we queue a record for the journal instead of writing all the
+     * jobs in one swath. Records queued within the write-behind window are written together.
+     */
+    private void appendToJournalAsync(byte op, JobStatus jobStatus) {
+        mPendingRecords.add(new JournalRecord(op, jobStatus));
+        markDirtyLocked();
+    }
+
+    /**
+     * Requests that the next write replaces the snapshot instead of appending to the journal.
+     */
+    private void compactAsync() {
+        mCompactRequested = true;
+        markDirtyLocked();
+    }
+
+    private void markDirtyLocked() {
+        mMutationCount++;
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mIoHandler.postDelayed(mWriteRunnable,
+                    JobScheduler.getConfig().getWriteBehindWindowMillis());
+        }
+    }
+
+    /**
+     * Called when the wall clock was set. Run times are kept in elapsed time so the jobs themselves
+     * don't change, but the anchor they are written against does, so the jobs are rewritten once
+     * against the new one. This does not block.
+     */
+    public void onTimeChanged() {
+        mIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                TimeBase timeBase = TimeBase.current();
+                if (mTimeBase != null && mTimeBase.isSameAnchor(timeBase)) {
+                    return;
+                }
+                mTimeBase = timeBase;
+                synchronized (JobStore.this) {
+                    compactAsync();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts writing any pending mutations to disk immediately instead of waiting for the
+     * write-behind window to pass. This does not block.
      */
-    private void maybeWriteStatusToDiskAsync() {
-        mDirtyOperations++;
-        if (mDirtyOperations >= MAX_OPS_BEFORE_WRITE) {
-            mIoHandler.post(new WriteJobsMapToDiskRunnable());
+    public void flush() {
+        synchronized (this) {
+            if (mPersistedCount == mMutationCount) {
+                return;
+            }
+            mWriteScheduled = true;
         }
+        mIoHandler.removeCallbacks(mWriteRunnable);
+        mIoHandler.post(mWriteRunnable);
     }
 
-    private void readJobMapFromDisk(ArraySet<JobStatus> jobSet) {
-        new ReadJobMapFromDiskRunnable(jobSet).run();
+    /**
+     * Flushes pending mutations and runs the given callback once they are on disk. If there are
+     * none it is run immediately on the calling thread, otherwise it is run on the io thread. This
+     * does not block.
+     */
+    public void whenPersisted(Runnable callback) {
+        synchronized (this) {
+            if (mPersistedCount < mMutationCount) {
+                mPersistedCallbacks.add(new PersistedCallback(mMutationCount, callback));
+                callback = null;
+            }
+        }
+        if (callback != null) {
+            callback.run();
+        } else {
+            flush();
+        }
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * @return Whether the jobs on disk have been loaded, so reads won't block.
+     */
+    public boolean isLoaded() {
+        synchronized (this) {
+            return mLoaded;
+        }
+    }
+
+    /**
+     * Runs the given callback once the jobs on disk have been loaded. If they already are it is run
+     * immediately on the calling thread, otherwise it is run on the io thread.
+     */
+    public void whenLoaded(Runnable callback) {
+        synchronized (this) {
+            if (!mLoaded) {
+                mLoadedCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Blocks until the jobs on disk have been loaded. The load always finishes, a file that can't
+     * be read is skipped, so this never gives up with only part of the jobs.
+     */
+    private void ensureLoadedLocked() {
+        if (mLoaded) {
+            return;
+        }
+        if (Looper.myLooper() == mIoHandler.getLooper()) {
+            // We can't wait on ourselves, load directly instead.
+            mReadRunnable.run();
+            return;
+        }
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                // Releases the lock so the load can finish.
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void touchBeforeLoadLocked(int jobId) {
+        if (!mLoaded) {
+            mTouchedBeforeLoad.put(jobId, true);
+        }
+    }
+
+    /**
+     * A callback waiting for the mutations made before it to be on disk.
+     */
+    private static class PersistedCallback {
+        final long mutationCount;
+        final Runnable callback;
+
+        PersistedCallback(long mutationCount, Runnable callback) {
+            this.mutationCount = mutationCount;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * A single add, remove or replace operation waiting to be appended to the journal.
+     */
+    private static class JournalRecord {
+        final byte op;
+        final JobStatus jobStatus;
+
+        JournalRecord(byte op, JobStatus jobStatus) {
+            this.op = op;
+            this.jobStatus = jobStatus;
+        }
+    }
+
+    /**
+     * Appends the records to the journal in a single write.
+     * NOTE: This must run on the io thread.
+     */
+    private void appendToJournal(List<JournalRecord> records) {
+        FileOutputStream fos = null;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            if (mJournalBytes == 0) {
+                writeJournalHeader(out, mJournalGeneration, getTimeBase());
+            }
+            for (int i = 0; i < records.size(); i++) {
+                JournalRecord record = records.get(i);
+                byte[] payload = record.op == JOURNAL_OP_REMOVE
+                        ? EMPTY_PAYLOAD : writeJobToBytes(record.jobStatus);
+                out.writeByte(record.op);
+                out.writeInt(record.jobStatus.getJobId());
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+            out.flush();
+
+            fos = new FileOutputStream(mJournalFile, mJournalBytes != 0);
+            fos.write(baos.toByteArray());
+            fos.getFD().sync();
+            mJournalBytes += baos.size();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        } finally {
+            closeQuietly(fos);
+        }
+    }
+
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private static void writeJournalHeader(DataOutputStream out, int generation,
+                                           TimeBase timeBase) throws IOException {
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeInt(JOURNAL_VERSION);
+        out.writeInt(generation);
+        timeBase.writeTo(out);
+    }
+
+    /**
+     * NOTE: This must be called on the io thread.
+     */
+    private TimeBase getTimeBase() {
+        if (mTimeBase == null) {
+            mTimeBase = TimeBase.current();
+        }
+        return mTimeBase;
+    }
+
+    /**
+     * Starts a new, empty journal for the given snapshot generation.
+     */
+    private void resetJournal(int generation) {
+        FileOutputStream fos = null;
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(JOURNAL_HEADER_BYTES);
+            DataOutputStream out = new DataOutputStream(baos);
+            writeJournalHeader(out, generation, getTimeBase());
+            out.flush();
+            fos = new FileOutputStream(mJournalFile, false);
+            fos.write(baos.toByteArray());
+            fos.getFD().sync();
+            mJournalBytes = baos.size();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            // Make sure the next append starts over with a fresh header.
+            mJournalFile.delete();
+            mJournalBytes = 0;
+        } finally {
+            closeQuietly(fos);
+        }
+        mJournalGeneration = generation;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Collects the package and class names used by a set of records so each is only written
+     * once, records refer to them by index.
+     */
+    private static class StringPool {
+        private final List<String> strings = new ArrayList<String>();
+        private final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+
+        int indexOf(String value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.add(value);
+                indexes.put(value, index);
+            }
+            return index;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            BinaryUtils.writeVarInt(out, strings.size());
+            for (int i = 0; i < strings.size(); i++) {
+                BinaryUtils.writeString(out, strings.get(i));
+            }
+        }
+    }
+
+    /**
+     * Serializes a single job along with its own string table, used for journal records.
+     */
+    private byte[] writeJobToBytes(JobStatus jobStatus) throws IOException {
+        StringPool pool = new StringPool();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeJobToBinary(new DataOutputStream(record), jobStatus, pool);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(record.size() + 64);
+        DataOutputStream out = new DataOutputStream(baos);
+        pool.writeTo(out);
+        out.flush();
+        record.writeTo(baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes out a single job record:
+     * <pre>
+     * jobId (signed varint), package (string index), class (string index), flags, network type,
+     * [period], [flex], [delay elapsed], [deadline elapsed], [backoff policy, initial backoff],
+     * [extras | extras blob hash], [timeslice]
+     * </pre>
+     * where the bracketed fields are only present if the matching flag is set. Run times are
+     * written as they are, relative to the {@link TimeBase} in the file's header. Extras larger
+     * than {@link ExtrasBlobStore#THRESHOLD_BYTES} are written to the {@link ExtrasBlobStore}
+     * instead of inline, once a job has a blob its extras are never serialized again.
+     */
+    private void writeJobToBinary(DataOutputStream out, JobStatus jobStatus, StringPool pool)
+            throws IOException {
+        // Don't load out of line extras, we only need to know where they are.
+        final JobInfo job = jobStatus.peekJob();
+        final ComponentName service = jobStatus.getServiceComponent();
+        final boolean customBackoff =
+                job.getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                        || job.getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY;
+        ExtrasBlobStore.Blob extrasBlob = jobStatus.getExtrasBlob();
+        byte[] inlineExtras = null;
+        if (extrasBlob == null && !job.getExtras().isEmpty()) {
+            ByteArrayOutputStream extrasBytes = new ByteArrayOutputStream();
+            DataOutputStream extrasOut = new DataOutputStream(extrasBytes);
+            job.getExtras().saveToBinary(extrasOut);
+            extrasOut.flush();
+            if (extrasBytes.size() >= ExtrasBlobStore.THRESHOLD_BYTES) {
+                extrasBlob = mExtrasBlobs.put(extrasBytes.toByteArray());
+                jobStatus.setExtrasBlob(extrasBlob);
+            } else {
+                inlineExtras = extrasBytes.toByteArray();
+            }
+        }
+
+        int flags = 0;
+        if (jobStatus.hasChargingConstraint()) flags |= FLAG_CHARGING;
+        if (jobStatus.hasIdleConstraint()) flags |= FLAG_IDLE;
+        if (jobStatus.isPersisted()) flags |= FLAG_PERSISTED;
+        if (job.isPeriodic()) flags |= FLAG_PERIODIC;
+        if (jobStatus.hasTimingDelayConstraint()) flags |= FLAG_DELAY;
+        if (jobStatus.hasDeadlineConstraint()) flags |= FLAG_DEADLINE;
+        if (customBackoff) flags |= FLAG_BACKOFF;
+        if (inlineExtras != null) flags |= FLAG_EXTRAS;
+        if (extrasBlob != null) flags |= FLAG_EXTRAS_BLOB;
+        if (job.getExecutionTimesliceMillis() != JobInfo.DEFAULT_EXECUTION_TIMESLICE) flags |= FLAG_TIMESLICE;
+        if (job.isPeriodic() && job.getFlexMillis() != job.getIntervalMillis()) flags |= FLAG_FLEX;
+
+        BinaryUtils.writeSignedVarInt(out, jobStatus.getJobId());
+        BinaryUtils.writeVarInt(out, pool.indexOf(service.getPackageName()));
+        BinaryUtils.writeVarInt(out, pool.indexOf(service.getClassName()));
+        BinaryUtils.writeVarInt(out, flags);
+        BinaryUtils.writeVarInt(out, job.getNetworkType());
+        if (job.isPeriodic()) {
+            BinaryUtils.writeVarLong(out, job.getIntervalMillis());
+        }
+        if ((flags & FLAG_FLEX) != 0) {
+            BinaryUtils.writeVarLong(out, job.getFlexMillis());
+        }
+        if (jobStatus.hasTimingDelayConstraint()) {
+            BinaryUtils.writeSignedVarLong(out, jobStatus.getEarliestRunTime());
+        }
+        if (jobStatus.hasDeadlineConstraint()) {
+            BinaryUtils.writeSignedVarLong(out, jobStatus.getLatestRunTimeElapsed());
+        }
+        // Only write out back-off policy if it differs from the default.
+        // This also helps the case where the job is idle -> these aren't allowed to specify
+        // back-off.
+        if (customBackoff) {
+            BinaryUtils.writeVarInt(out, job.getBackoffPolicy());
+            BinaryUtils.writeVarLong(out, job.getInitialBackoffMillis());
+        }
+        if (inlineExtras != null) {
+            out.write(inlineExtras);
+        }
+        if (extrasBlob != null) {
+            BinaryUtils.writeString(out, extrasBlob.getHash());
+        }
+        if ((flags & FLAG_TIMESLICE) != 0) {
+            BinaryUtils.writeVarLong(out, job.getExecutionTimesliceMillis());
+        }
+    }
+
+    /**
+     * Runnable that writes all mutations made since it last ran. Normally these are appended to
+     * the journal, but if the journal is too large or a compaction was requested {@link #mJobSet}
+     * is written out to a new snapshot and a new journal is started instead.
      * NOTE: This Runnable locks on JobStore.this
      */
     private class WriteJobsMapToDiskRunnable implements Runnable {
         @Override
         public void run() {
-            final long startElapsed = SystemClock.elapsedRealtime();
-            List<JobStatus> mStoreCopy = new ArrayList<JobStatus>();
+            List<JournalRecord> records = null;
+            CopyOnWriteSparseArray<JobStatus> storeCopy = null;
+            long mutationCount;
             synchronized (JobStore.this) {
-                // Copy over the jobs so we can release the lock before writing.
-                for (int i = 0; i < mJobSet.size(); i++) {
-                    JobStatus jobStatus = mJobSet.valueAt(i);
-                    JobStatus copy = new JobStatus(jobStatus.getJob(),
-                            jobStatus.getEarliestRunTime(), jobStatus.getLatestRunTimeElapsed());
-                    mStoreCopy.add(copy);
+                mWriteScheduled = false;
+                mutationCount = mMutationCount;
+                if (mCompactRequested || mJournalBytes > MAX_JOURNAL_BYTES) {
+                    // The snapshot covers any pending records.
+                    storeCopy = mJobsById.snapshot();
+                    mCompactRequested = false;
+                } else {
+                    records = mPendingRecords;
+                }
+                mPendingRecords = new ArrayList<JournalRecord>();
+            }
+
+            if (records != null && !records.isEmpty()) {
+                appendToJournal(records);
+                if (mJournalBytes > MAX_JOURNAL_BYTES) {
+                    // Any mutations made since are also in the snapshot, replaying their records
+                    // on top of it again is harmless.
+                    synchronized (JobStore.this) {
+                        storeCopy = mJobsById.snapshot();
+                    }
+                }
+            }
+            if (storeCopy != null) {
+                writeJobsMapImpl(storeCopy);
+            }
+
+            List<Runnable> callbacks = null;
+            synchronized (JobStore.this) {
+                // Even if the write failed there is nothing left to wait on.
+                mPersistedCount = Math.max(mPersistedCount, mutationCount);
+                for (int i = mPersistedCallbacks.size() - 1; i >= 0; i--) {
+                    PersistedCallback persisted = mPersistedCallbacks.get(i);
+                    if (persisted.mutationCount <= mPersistedCount) {
+                        if (callbacks == null) {
+                            callbacks = new ArrayList<Runnable>();
+                        }
+                        callbacks.add(0, persisted.callback);
+                        mPersistedCallbacks.remove(i);
+                    }
+                }
+            }
+            if (callbacks != null) {
+                for (int i = 0; i < callbacks.size(); i++) {
+                    callbacks.get(i).run();
                 }
             }
-            writeJobsMapImpl(mStoreCopy);
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        /**
+         * Writes out the snapshot as:
+         * <pre>
+         * magic, version, journal generation, time base, string table, record count,
+         * (record length, record)*
+         * </pre>
+         * where every number after the magic is a varint, except for the time base, and records
+         * are written by {@link #writeJobToBinary}.
+         */
+        private void writeJobsMapImpl(CopyOnWriteSparseArray<JobStatus> jobList) {
+            final int generation = mJournalGeneration + 1;
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, "utf-8");
-                out.startDocument(null, true);
-                out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-                out.startTag(null, "job-info");
-                out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                StringPool pool = new StringPool();
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                DataOutputStream recordsOut = new DataOutputStream(records);
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                DataOutputStream recordOut = new DataOutputStream(record);
                 for (int i = 0; i < jobList.size(); i++) {
-                    JobStatus jobStatus = jobList.get(i);
-                    out.startTag(null, "job");
-                    addIdentifierAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getExtras(), out);
-                    out.endTag(null, "job");
+                    record.reset();
+                    writeJobToBinary(recordOut, jobList.valueAt(i), pool);
+                    recordOut.flush();
+                    BinaryUtils.writeVarInt(recordsOut, record.size());
+                    record.writeTo(recordsOut);
                 }
-                out.endTag(null, "job-info");
-                out.endDocument();
+                recordsOut.flush();
+
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(records.size() + 256);
+                DataOutputStream out = new DataOutputStream(baos);
+                out.writeInt(JOBS_FILE_MAGIC);
+                BinaryUtils.writeVarInt(out, JOBS_FILE_VERSION);
+                BinaryUtils.writeVarInt(out, generation);
+                getTimeBase().writeTo(out);
+                pool.writeTo(out);
+                BinaryUtils.writeVarInt(out, jobList.size());
+                out.flush();
+                records.writeTo(baos);
 
                 // Write out to disk in one fell sweep.
                 FileOutputStream fos = mJobsFile.startWrite();
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
-                mDirtyOperations = 0;
             } catch (IOException e) {
                 Log.e(TAG, e.getMessage(), e);
-            } catch (XmlPullParserException e) {
-                Log.e(TAG, e.getMessage(), e);
+                return;
+            }
+            // Anything in the old xml file has been carried over.
+            mLegacyJobsFile.delete();
+            // Only blobs referenced by the new snapshot are still needed.
+            Set<String> referencedBlobs = new HashSet<String>();
+            for (int i = 0; i < jobList.size(); i++) {
+                ExtrasBlobStore.Blob extrasBlob = jobList.valueAt(i).getExtrasBlob();
+                if (extrasBlob != null) {
+                    referencedBlobs.add(extrasBlob.getHash());
+                }
+            }
+            mExtrasBlobs.retainAll(referencedBlobs);
+            // The snapshot now contains everything in the old journal.
+            resetJournal(generation);
+        }
+    }
+
+    /**
+     * Runnable that reads list of persisted job from disk. This is run once at start up, so doesn't
+     * need to go through {@link JobStore#add(JobStatus)}.
+     */
+    private class ReadJobMapFromDiskRunnable implements Runnable {
+        /**
+         * Set if anything on disk was written on another boot or against another wall clock, it
+         * is then rewritten against the current one.
+         */
+        private boolean mReanchor;
+
+        @Override
+        public void run() {
+            synchronized (JobStore.this) {
+                if (mLoaded) {
+                    // Already loaded directly by a read on the io thread.
+                    return;
+                }
+            }
+            mJobDir.mkdirs();
+            SparseArray<JobStatus> jobs = new SparseArray<JobStatus>();
+            boolean migrate = false;
+            if (!readJobMapBinary(jobs) && mLegacyJobsFile.getBaseFile().exists()) {
+                List<JobStatus> snapshot = readJobMapLegacyXml();
+                if (snapshot != null) {
+                    for (int i = 0; i < snapshot.size(); i++) {
+                        JobStatus jobStatus = snapshot.get(i);
+                        jobs.put(jobStatus.getJobId(), jobStatus);
+                    }
+                    migrate = true;
+                }
+            }
+
+            replayJournal(jobs);
+
+            List<Runnable> callbacks;
+            synchronized (JobStore.this) {
+                if (migrate || mReanchor) {
+                    // Rewrite the jobs in the current format and time base. This also keeps new
+                    // journal records from being appended after ones from another boot.
+                    compactAsync();
+                }
+                if (!mClearedBeforeLoad) {
+                    for (int i = 0; i < jobs.size(); i++) {
+                        JobStatus jobStatus = jobs.valueAt(i);
+                        // Anything changed since we started loading is newer than what is on disk.
+                        if (mTouchedBeforeLoad.get(jobStatus.getJobId())) {
+                            continue;
+                        }
+                        // Skip any jobs that are not persisted if we have rebooted.
+                        if (!jobStatus.isPersisted() && !isMarkedForBootSession(jobStatus)) {
+                            continue;
+                        }
+                        trackJobLocked(jobStatus);
+                    }
+                }
+                mTouchedBeforeLoad = null;
+                mLoaded = true;
+                callbacks = mLoadedCallbacks;
+                mLoadedCallbacks = null;
+                JobStore.this.notifyAll();
+            }
+            for (int i = 0; i < callbacks.size(); i++) {
+                callbacks.get(i).run();
             }
         }
 
         /**
-         * Write out a tag with data comprising the required fields of this job and its client.
+         * Applies the journal records on top of the snapshot. A journal from a different snapshot
+         * generation has already been compacted and is ignored, and a torn record at the end (from
+         * dying mid-append) is truncated away so new records can be appended after it.
          */
-        private void addIdentifierAttributesToJobTag(XmlSerializer out, JobStatus jobStatus)
+        private void replayJournal(SparseArray<JobStatus> jobs) {
+            long validBytes = 0;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+                int version = in.readInt() == JOURNAL_MAGIC ? in.readInt() : -1;
+                if (version == JOURNAL_VERSION && in.readInt() == mJournalGeneration) {
+                    TimeBase timeBase = TimeBase.readFrom(in);
+                    validBytes = JOURNAL_HEADER_BYTES;
+                    checkTimeBase(timeBase);
+                    while (true) {
+                        byte op = in.readByte();
+                        int jobId = in.readInt();
+                        int length = in.readInt();
+                        if (length < 0 || length > MAX_JOURNAL_BYTES) {
+                            break;
+                        }
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        if (op == JOURNAL_OP_REMOVE) {
+                            jobs.remove(jobId);
+                        } else if (op == JOURNAL_OP_ADD || op == JOURNAL_OP_REPLACE) {
+                            JobStatus jobStatus = restoreJobFromBytes(payload, timeBase);
+                            if (jobStatus != null) {
+                                jobs.put(jobId, jobStatus);
+                            }
+                        } else {
+                            break;
+                        }
+                        validBytes += 9 + length;
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // Ignore
+            } catch (EOFException e) {
+                // Ignore, end of journal.
+            } catch (BufferUnderflowException e) {
+                // Ignore, corrupt record.
+            } catch (IOException e) {
+                // Ignore
+            } finally {
+                closeQuietly(in);
+            }
+
+            mJournalBytes = validBytes;
+            if (validBytes == 0) {
+                mJournalFile.delete();
+            } else if (mJournalFile.length() > validBytes) {
+                truncateJournal(validBytes);
+            }
+        }
+
+        private void truncateJournal(long length) {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mJournalFile, "rw");
+                file.setLength(length);
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+                mJournalFile.delete();
+                mJournalBytes = 0;
+            } finally {
+                closeQuietly(file);
+            }
+        }
+
+        private JobStatus restoreJobFromBytes(byte[] payload, TimeBase timeBase)
                 throws IOException {
-            out.attribute(null, "jobid", Integer.toString(jobStatus.getJobId()));
-            out.attribute(null, "package", jobStatus.getServiceComponent().getPackageName());
-            out.attribute(null, "class", jobStatus.getServiceComponent().getClassName());
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            String[] strings = readStringTable(in);
+            return readJobFromBinary(in, strings, new ComponentName[strings.length], timeBase);
         }
 
-        private void writeBundleToXml(PersistableBundle extras, XmlSerializer out)
-                throws IOException, XmlPullParserException {
-            out.startTag(null, XML_TAG_EXTRAS);
-            extras.saveToXml(out);
-            out.endTag(null, XML_TAG_EXTRAS);
+        private void checkTimeBase(TimeBase timeBase) {
+            TimeBase current = getTimeBase();
+            if (!timeBase.isSameBoot(current) || !timeBase.isSameAnchor(current)) {
+                mReanchor = true;
+            }
         }
 
         /**
-         * Write out a tag with data identifying this job's constraints. If the constraint isn't here
-         * it doesn't apply.
+         * Maps the jobs file into memory and decodes the records in place.
+         *
+         * @return false if there was no valid jobs file.
          */
-        private void writeConstraintsToXml(XmlSerializer out, JobStatus jobStatus) throws IOException {
-            out.startTag(null, XML_TAG_PARAMS_CONSTRAINTS);
-            if (jobStatus.hasUnmeteredConstraint()) {
-                out.attribute(null, "unmetered", Boolean.toString(true));
+        private boolean readJobMapBinary(SparseArray<JobStatus> jobs) {
+            final long startTime = System.nanoTime();
+            FileInputStream fis = null;
+            try {
+                // Goes through AtomicFile so an interrupted write is rolled back first.
+                fis = mJobsFile.openRead();
+                FileChannel channel = fis.getChannel();
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (!readJobMapBinaryImpl(in, jobs)) {
+                    return false;
+                }
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Read " + jobs.size() + " jobs in "
+                            + (System.nanoTime() - startTime) / 1000 + "us");
+                }
+                return true;
+            } catch (FileNotFoundException e) {
+                // Ignore
+            } catch (IOException e) {
+                // Ignore
+            } catch (BufferUnderflowException e) {
+                // Ignore, truncated file.
+            } finally {
+                closeQuietly(fis);
             }
-            if (jobStatus.hasConnectivityConstraint()) {
-                out.attribute(null, "connectivity", Boolean.toString(true));
+            // Don't keep anything from a partial read.
+            jobs.clear();
+            return false;
+        }
+
+        private boolean readJobMapBinaryImpl(ByteBuffer in, SparseArray<JobStatus> jobs)
+                throws IOException {
+            if (in.remaining() < 4 || in.getInt() != JOBS_FILE_MAGIC) {
+                return false;
             }
-            if (jobStatus.hasIdleConstraint()) {
-                out.attribute(null, "idle", Boolean.toString(true));
+            int version = BinaryUtils.readVarInt(in);
+            if (version != JOBS_FILE_VERSION) {
+                return false;
             }
-            if (jobStatus.hasChargingConstraint()) {
-                out.attribute(null, "charging", Boolean.toString(true));
+            mJournalGeneration = BinaryUtils.readVarInt(in);
+            TimeBase timeBase = TimeBase.readFrom(in);
+            checkTimeBase(timeBase);
+            String[] strings = readStringTable(in);
+            ComponentName[] components = new ComponentName[strings.length];
+            int count = BinaryUtils.readVarInt(in);
+            for (int i = 0; i < count; i++) {
+                int length = BinaryUtils.readVarInt(in);
+                int end = in.position() + length;
+                if (length < 0 || end > in.limit()) {
+                    throw new IOException("Malformed record length: " + length);
+                }
+                JobStatus persistedJob = readJobFromBinary(in, strings, components, timeBase);
+                if (persistedJob != null) {
+                    jobs.put(persistedJob.getJobId(), persistedJob);
+                }
+                // Skip over anything we didn't understand.
+                in.position(end);
             }
-            out.endTag(null, XML_TAG_PARAMS_CONSTRAINTS);
+            return true;
         }
 
-        private void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus)
+        private String[] readStringTable(ByteBuffer in) throws IOException {
+            int count = BinaryUtils.readVarInt(in);
+            if (count < 0 || count > in.remaining()) {
+                throw new IOException("Malformed string table size: " + count);
+            }
+            String[] strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                strings[i] = BinaryUtils.readString(in);
+            }
+            return strings;
+        }
+
+        /**
+         * Reads a single job record written by {@link #writeJobToBinary}.
+         *
+         * @param components Cache of the service components seen so far, indexed by their class
+         *                   name's position in the string table.
+         * @param timeBase   The time base the record's run times were written against.
+         * @return the job, or null if the record doesn't describe a valid job.
+         */
+        private JobStatus readJobFromBinary(ByteBuffer in, String[] strings,
+                                            ComponentName[] components, TimeBase timeBase)
                 throws IOException {
-            final JobInfo job = jobStatus.getJob();
-            if (jobStatus.getJob().isPeriodic()) {
-                out.startTag(null, XML_TAG_PERIODIC);
-                out.attribute(null, "period", Long.toString(job.getIntervalMillis()));
-            } else {
-                out.startTag(null, XML_TAG_ONEOFF);
+            int jobId = BinaryUtils.readSignedVarInt(in);
+            int packageIndex = BinaryUtils.readVarInt(in);
+            int classIndex = BinaryUtils.readVarInt(in);
+            if (packageIndex < 0 || packageIndex >= strings.length
+                    || classIndex < 0 || classIndex >= strings.length) {
+                throw new IOException("Malformed string index");
+            }
+            int flags = BinaryUtils.readVarInt(in);
+            int networkType = BinaryUtils.readVarInt(in);
+
+            ComponentName service = components[classIndex];
+            // Jobs almost always share a few services, only create one per class name. Comparing
+            // the package by reference is enough since both come from the same string table.
+            if (service == null || service.getPackageName() != strings[packageIndex]) {
+                service = new ComponentName(strings[packageIndex], strings[classIndex]);
+                components[classIndex] = service;
+            }
+            JobInfo.Builder jobBuilder = new JobInfo.Builder(jobId, service);
+            jobBuilder.setRequiredNetworkType(networkType);
+            jobBuilder.setRequiresCharging((flags & FLAG_CHARGING) != 0);
+            jobBuilder.setRequiresDeviceIdle((flags & FLAG_IDLE) != 0);
+            jobBuilder.setPersisted((flags & FLAG_PERSISTED) != 0);
+
+            long period = 0;
+            if ((flags & FLAG_PERIODIC) != 0) {
+                period = BinaryUtils.readVarLong(in);
+            }
+            long flex = period;
+            if ((flags & FLAG_FLEX) != 0) {
+                flex = BinaryUtils.readVarLong(in);
             }
 
-            if (jobStatus.isPersisted()) {
-                out.attribute(null, "persisted", Boolean.toString(true));
+            // Run times written on this boot are used as they are, ones from another boot keep
+            // their wall clock time and anything in the past is due now.
+            final TimeBase current = getTimeBase();
+            final long nowElapsed = current.getNowElapsedMillis();
+            long earliestRunTimeElapsed = JobStatus.NO_EARLIEST_RUNTIME;
+            long latestRunTimeElapsed = JobStatus.NO_LATEST_RUNTIME;
+            if ((flags & FLAG_DELAY) != 0) {
+                earliestRunTimeElapsed =
+                        timeBase.toElapsed(BinaryUtils.readSignedVarLong(in), current);
+            }
+            if ((flags & FLAG_DEADLINE) != 0) {
+                latestRunTimeElapsed =
+                        timeBase.toElapsed(BinaryUtils.readSignedVarLong(in), current);
             }
 
-            if (jobStatus.hasDeadlineConstraint()) {
-                // Wall clock deadline.
-                final long deadlineWallclock = System.currentTimeMillis() +
-                        (jobStatus.getLatestRunTimeElapsed() - SystemClock.elapsedRealtime());
-                out.attribute(null, "deadline", Long.toString(deadlineWallclock));
+            if ((flags & FLAG_PERIODIC) != 0) {
+                jobBuilder.setPeriodic(period, flex);
+            } else {
+                if (earliestRunTimeElapsed != JobStatus.NO_EARLIEST_RUNTIME) {
+                    jobBuilder.setMinimumLatency(Math.max(earliestRunTimeElapsed - nowElapsed, 0));
+                }
+                if (latestRunTimeElapsed != JobStatus.NO_LATEST_RUNTIME) {
+                    jobBuilder.setOverrideDeadline(Math.max(latestRunTimeElapsed - nowElapsed, 0));
+                }
             }
-            if (jobStatus.hasTimingDelayConstraint()) {
-                final long delayWallclock = System.currentTimeMillis() +
-                        (jobStatus.getEarliestRunTime() - SystemClock.elapsedRealtime());
-                out.attribute(null, "delay", Long.toString(delayWallclock));
+
+            if ((flags & FLAG_BACKOFF) != 0) {
+                int backoffPolicy = BinaryUtils.readVarInt(in);
+                long initialBackoff = BinaryUtils.readVarLong(in);
+                jobBuilder.setBackoffCriteria(initialBackoff, backoffPolicy);
             }
 
-            // Only write out back-off policy if it differs from the default.
-            // This also helps the case where the job is idle -> these aren't allowed to specify
-            // back-off.
-            if (jobStatus.getJob().getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
-                    || jobStatus.getJob().getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY) {
-                out.attribute(null, "backoff-policy", Integer.toString(job.getBackoffPolicy()));
-                out.attribute(null, "initial-backoff", Long.toString(job.getInitialBackoffMillis()));
+            if ((flags & FLAG_EXTRAS) != 0) {
+                jobBuilder.setExtras(PersistableBundle.restoreFromBinary(in));
             }
-            if (job.isPeriodic()) {
-                out.endTag(null, XML_TAG_PERIODIC);
-            } else {
-                out.endTag(null, XML_TAG_ONEOFF);
+
+            ExtrasBlobStore.Blob extrasBlob = null;
+            if ((flags & FLAG_EXTRAS_BLOB) != 0) {
+                // Only loaded once the job needs them.
+                extrasBlob = mExtrasBlobs.get(BinaryUtils.readString(in));
             }
-        }
-    }
 
-    /**
-     * Runnable that reads list of persisted job from xml. This is run once at start up, so doesn't
-     * need to go through {@link JobStore#add(JobStatus)}.
-     */
-    private class ReadJobMapFromDiskRunnable implements Runnable {
-        private final ArraySet<JobStatus> jobSet;
+            if ((flags & FLAG_TIMESLICE) != 0) {
+                jobBuilder.setExecutionTimeslice(BinaryUtils.readVarLong(in));
+            }
 
-        /**
-         * @param jobSet Reference to the (empty) set of JobStatus objects that back the JobStore,
-         *               so that after disk read we can populate it directly.
-         */
-        ReadJobMapFromDiskRunnable(ArraySet<JobStatus> jobSet) {
-            this.jobSet = jobSet;
+            try {
+                JobInfo job = jobBuilder.build();
+                if (extrasBlob != null) {
+                    return new JobStatus(job, earliestRunTimeElapsed, latestRunTimeElapsed,
+                            extrasBlob);
+                }
+                return new JobStatus(job, earliestRunTimeElapsed, latestRunTimeElapsed);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
         }
 
-        @Override
-        public void run() {
+        private List<JobStatus> readJobMapLegacyXml() {
             try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
-                synchronized (JobStore.this) {
-                    jobs = readJobMapImpl(fis);
-                    if (jobs != null) {
-                        for (int i = 0; i < jobs.size(); i++) {
-                            JobStatus jobStatus = jobs.get(i);
-                            // Skip any jobs that are not persisted if we have rebooted.
-                            if (!jobStatus.isPersisted() && !isMarkedForBootSession(jobStatus)) {
-                                continue;
-                            }
-                            this.jobSet.add(jobStatus);
-                        }
-                    }
-                }
+                FileInputStream fis = mLegacyJobsFile.openRead();
+                List<JobStatus> jobs = readJobMapLegacyXmlImpl(fis);
                 fis.close();
+                return jobs;
             } catch (FileNotFoundException e) {
                 // Ignore
             } catch (XmlPullParserException e) {
@@ -405,9 +1343,13 @@ public class JobStore {
             } catch (IOException e) {
                 // Ignore
             }
+            return null;
         }
 
-        private List<JobStatus> readJobMapImpl(FileInputStream fis)
+        /**
+         * Reads the version 0 xml format, this is only used to migrate existing jobs.
+         */
+        private List<JobStatus> readJobMapLegacyXmlImpl(FileInputStream fis)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(fis, null);
@@ -427,7 +1369,7 @@ public class JobStore {
                 // Read in version info.
                 try {
                     int version = Integer.valueOf(parser.getAttributeValue(null, "version"));
-                    if (version != JOBS_FILE_VERSION) {
+                    if (version != LEGACY_XML_JOBS_FILE_VERSION) {
                         return null;
                     }
                 } catch (NumberFormatException e) {
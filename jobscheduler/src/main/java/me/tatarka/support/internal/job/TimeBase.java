@@ -0,0 +1,155 @@
+package me.tatarka.support.internal.job;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * The boot a set of elapsed run times belongs to. The job store writes run times as elapsed time
+ * along with this, so they can be written as they are and only have to be converted when they are
+ * read back after a reboot.
+ * <p/>
+ * A boot is identified by the kernel's boot id if it can be read, otherwise by the wall clock time
+ * elapsed realtime started counting from, which is also what run times are converted with.
+ *
+ * @hide
+ */
+public final class TimeBase {
+    private static final String TAG = "TimeBase";
+    private static final String BOOT_ID_FILE = "/proc/sys/kernel/random/boot_id";
+
+    /**
+     * Without a boot id, two boot anchors this close are assumed to be from the same boot. The
+     * anchor drifts a little as the wall clock is corrected, a reboot moves it by at least the time
+     * the device was up.
+     */
+    private static final long SAME_BOOT_SLOP_MILLIS = 2000;
+
+    private static long[] sBootId;
+
+    private final long bootIdHigh;
+    private final long bootIdLow;
+    private final long bootWallclockMillis;
+    /**
+     * When this was captured, only set for {@link #current()}.
+     */
+    private final long nowElapsedMillis;
+    private final long nowWallclockMillis;
+
+    private TimeBase(long bootIdHigh, long bootIdLow, long bootWallclockMillis,
+                     long nowElapsedMillis, long nowWallclockMillis) {
+        this.bootIdHigh = bootIdHigh;
+        this.bootIdLow = bootIdLow;
+        this.bootWallclockMillis = bootWallclockMillis;
+        this.nowElapsedMillis = nowElapsedMillis;
+        this.nowWallclockMillis = nowWallclockMillis;
+    }
+
+    /**
+     * @return The current boot, anchored to the current wall clock. This may read the boot id from
+     * disk the first time it is called.
+     */
+    static TimeBase current() {
+        long[] bootId = getBootId();
+        long nowWallclock = System.currentTimeMillis();
+        long nowElapsed = SystemClock.elapsedRealtime();
+        return new TimeBase(bootId[0], bootId[1], nowWallclock - nowElapsed, nowElapsed,
+                nowWallclock);
+    }
+
+    static TimeBase readFrom(DataInput in) throws IOException {
+        long bootIdHigh = in.readLong();
+        long bootIdLow = in.readLong();
+        long bootWallclock = in.readLong();
+        return new TimeBase(bootIdHigh, bootIdLow, bootWallclock, 0, 0);
+    }
+
+    static TimeBase readFrom(ByteBuffer in) {
+        long bootIdHigh = in.getLong();
+        long bootIdLow = in.getLong();
+        long bootWallclock = in.getLong();
+        return new TimeBase(bootIdHigh, bootIdLow, bootWallclock, 0, 0);
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(bootIdHigh);
+        out.writeLong(bootIdLow);
+        out.writeLong(bootWallclockMillis);
+    }
+
+    long getNowElapsedMillis() {
+        return nowElapsedMillis;
+    }
+
+    boolean isSameBoot(TimeBase other) {
+        if (hasBootId() && other.hasBootId()) {
+            return bootIdHigh == other.bootIdHigh && bootIdLow == other.bootIdLow;
+        }
+        return isSameAnchor(other);
+    }
+
+    /**
+     * @return Whether both are from the same boot and the wall clock hasn't been changed between
+     * them, so converting elapsed times with either gives the same wall clock time.
+     */
+    boolean isSameAnchor(TimeBase other) {
+        return Math.abs(bootWallclockMillis - other.bootWallclockMillis) <= SAME_BOOT_SLOP_MILLIS;
+    }
+
+    /**
+     * Converts an elapsed time on this boot to one on the given current boot. If it is the same
+     * boot this is the time itself, otherwise it keeps the same wall clock time, anything in the
+     * past is due now.
+     */
+    long toElapsed(long elapsedMillis, TimeBase current) {
+        if (isSameBoot(current)) {
+            return elapsedMillis;
+        }
+        long wallclockMillis = bootWallclockMillis + elapsedMillis;
+        return current.nowElapsedMillis
+                + Math.max(wallclockMillis - current.nowWallclockMillis, 0);
+    }
+
+    private boolean hasBootId() {
+        return bootIdHigh != 0 || bootIdLow != 0;
+    }
+
+    private static synchronized long[] getBootId() {
+        if (sBootId == null) {
+            sBootId = readBootId();
+        }
+        return sBootId;
+    }
+
+    private static long[] readBootId() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(BOOT_ID_FILE));
+            String line = reader.readLine();
+            if (line != null) {
+                UUID bootId = UUID.fromString(line.trim());
+                return new long[]{bootId.getMostSignificantBits(), bootId.getLeastSignificantBits()};
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read boot id, falling back to the wall clock", e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unable to read boot id, falling back to the wall clock", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return new long[]{0, 0};
+    }
+}
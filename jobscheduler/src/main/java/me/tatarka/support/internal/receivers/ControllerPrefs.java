@@ -1,92 +1,177 @@
 package me.tatarka.support.internal.receivers;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import me.tatarka.support.internal.IoThread;
 
 /**
+ * State the receivers need to remember between broadcasts. It is kept in memory and only written
+ * out when a value actually changes. Writes are made on the {@link IoThread} and several changes
+ * made before it gets to them are written together.
+ *
  * @hide
  */
 public class ControllerPrefs {
-    private static final String PREFS_NAME = "me.tatarka.support.job.controllers.PREFS";
-    private static final String KEY_BATTERY_LOW = "battery_low";
-    private static final String KEY_NEXT_JOB_EXPIRED_ELAPSED_MILLIS = "next_job_expired_elapsed_millis";
-    private static final String KEY_NEXT_DELAY_EXPIRED_ELAPSED_MILLIS = "next_delay_expired_elapsed_millis";
-    private static final String KEY_DAYDREAM_MODE = "daydream_mode";
+    private static final String TAG = "ControllerPrefs";
+
+    /**
+     * The file is a fixed layout: magic, version, flags.
+     */
+    private static final int FILE_MAGIC = 0x4a534350; // "JSCP"
+    private static final int FILE_VERSION = 1;
+    private static final int FLAG_BATTERY_LOW = 1;
+    private static final int FLAG_DAYDREAM_MODE = 1 << 1;
 
     private static ControllerPrefs sInstance;
 
-    public static ControllerPrefs getInstance(Context context) {
+    public static synchronized ControllerPrefs getInstance(Context context) {
         if (sInstance == null) {
             sInstance = new ControllerPrefs(context);
         }
         return sInstance;
     }
 
-    private final SharedPreferences prefs;
+    private final AtomicFile file;
+    private boolean batteryLow;
+    private boolean daydreamMode;
+    private boolean writeScheduled;
 
     private ControllerPrefs(Context context) {
-        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-    }
-
-    boolean isBatteryLow() {
-        return prefs.getBoolean(KEY_BATTERY_LOW, false);
+        File jobDir = new File(new File(context.getFilesDir(), "system"), "job");
+        file = new AtomicFile(new File(jobDir, "controllers.bin"));
+        read();
     }
 
-    boolean isInDaydreamMode() {
-        return prefs.getBoolean(KEY_DAYDREAM_MODE, false);
+    synchronized boolean isBatteryLow() {
+        return batteryLow;
     }
 
-    long getNextJobExpiredElapsedMillis() {
-        return prefs.getLong(KEY_NEXT_JOB_EXPIRED_ELAPSED_MILLIS, 0);
+    synchronized boolean isInDaydreamMode() {
+        return daydreamMode;
     }
 
-    long getNextDelayExpiredElapsedMillis() {
-        return prefs.getLong(KEY_NEXT_DELAY_EXPIRED_ELAPSED_MILLIS, 0);
-    }
-
-    @SuppressLint("CommitPrefEdits")
     Editor edit() {
-        return new Editor(prefs.edit());
+        return new Editor();
     }
 
     public void clear() {
-        prefs.edit().clear().apply();
+        new Editor()
+                .setBatteryLow(false)
+                .setInDaydreamMode(false)
+                .apply();
     }
 
-    static class Editor {
-        SharedPreferences.Editor editor;
-
-        private Editor(SharedPreferences.Editor editor) {
-            this.editor = editor;
+    private void read() {
+        byte[] data;
+        try {
+            data = file.readFully();
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read controller state", e);
+            return;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readInt() != FILE_MAGIC) {
+                return;
+            }
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int flags = in.readByte();
+            batteryLow = (flags & FLAG_BATTERY_LOW) != 0;
+            daydreamMode = (flags & FLAG_DAYDREAM_MODE) != 0;
+        } catch (IOException e) {
+            // Truncated, start over with the defaults.
+            Log.e(TAG, "Unable to read controller state", e);
         }
+    }
 
-        Editor setBatteryLow(boolean value) {
-            editor.putBoolean(KEY_BATTERY_LOW, value);
-            return this;
+    private final Runnable writeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int flags = 0;
+            synchronized (ControllerPrefs.this) {
+                writeScheduled = false;
+                if (batteryLow) flags |= FLAG_BATTERY_LOW;
+                if (daydreamMode) flags |= FLAG_DAYDREAM_MODE;
+            }
+            FileOutputStream fos = null;
+            try {
+                file.getBaseFile().getParentFile().mkdirs();
+                fos = file.startWrite();
+                DataOutputStream out = new DataOutputStream(fos);
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeByte(flags);
+                out.flush();
+                file.finishWrite(fos);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write controller state", e);
+                if (fos != null) {
+                    file.failWrite(fos);
+                }
+            }
         }
+    };
 
-        Editor setNextJobExpiredElapsedMillis(long value) {
-            editor.putLong(KEY_NEXT_JOB_EXPIRED_ELAPSED_MILLIS, value);
-            return this;
+    /**
+     * Like {@link android.content.SharedPreferences.Editor}, only the values that were set are
+     * changed.
+     */
+    class Editor {
+        private static final int SET_BATTERY_LOW = 1;
+        private static final int SET_DAYDREAM_MODE = 1 << 1;
+
+        private int set;
+        private boolean batteryLow;
+        private boolean daydreamMode;
+
+        private Editor() {
         }
 
-        Editor setNextDelayExipredElapsedMillis(long value) {
-            editor.putLong(KEY_NEXT_DELAY_EXPIRED_ELAPSED_MILLIS, value);
+        Editor setBatteryLow(boolean value) {
+            batteryLow = value;
+            set |= SET_BATTERY_LOW;
             return this;
         }
 
         Editor setInDaydreamMode(boolean value) {
-            editor.putBoolean(KEY_DAYDREAM_MODE, value);
+            daydreamMode = value;
+            set |= SET_DAYDREAM_MODE;
             return this;
         }
 
-        boolean commit() {
-            return editor.commit();
-        }
-
+        /**
+         * Updates the values in memory and, if any of them changed, schedules a write.
+         */
         void apply() {
-            editor.apply();
+            synchronized (ControllerPrefs.this) {
+                boolean changed = false;
+                if ((set & SET_BATTERY_LOW) != 0 && ControllerPrefs.this.batteryLow != batteryLow) {
+                    ControllerPrefs.this.batteryLow = batteryLow;
+                    changed = true;
+                }
+                if ((set & SET_DAYDREAM_MODE) != 0 && ControllerPrefs.this.daydreamMode != daydreamMode) {
+                    ControllerPrefs.this.daydreamMode = daydreamMode;
+                    changed = true;
+                }
+                if (changed && !writeScheduled) {
+                    writeScheduled = true;
+                    IoThread.getHandler().post(writeRunnable);
+                }
+            }
         }
     }
 }
@@ -11,7 +11,7 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.support.v4.content.WakefulBroadcastReceiver;
 
-import me.tatarka.support.internal.job.JobServiceCompat;
+import me.tatarka.support.internal.job.JobSchedulerService;
 import me.tatarka.support.internal.job.JobStore;
 import me.tatarka.support.internal.util.ArraySet;
 
@@ -74,7 +74,7 @@ public class IdleReceiver extends WakefulBroadcastReceiver {
             Intent i = new Intent(context, IdleReceiver.class);
             i.setAction(ACTION_TRIGGER_IDLE);
             PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, i, 0);
-            compatSetWindow(am, AlarmManager.ELAPSED_REALTIME_WAKEUP, when, IDLE_WINDOW_SLOP, pendingIntent);
+            ReceiverUtils.compatSetWindow(am, AlarmManager.ELAPSED_REALTIME_WAKEUP, when, IDLE_WINDOW_SLOP, pendingIntent);
         } else if (action.equals(ACTION_TRIGGER_IDLE)) {
             // idle time starts now
             if (isIdle) {
@@ -106,7 +106,7 @@ public class IdleReceiver extends WakefulBroadcastReceiver {
         PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
         final long nowElapsed = SystemClock.elapsedRealtime();
         final long when = nowElapsed + INACTIVITY_ANYWAY_THRESHOLD;
-        compatSetWindow(am, AlarmManager.ELAPSED_REALTIME_WAKEUP, when, IDLE_WINDOW_SLOP, pendingIntent);
+        ReceiverUtils.compatSetWindow(am, AlarmManager.ELAPSED_REALTIME_WAKEUP, when, IDLE_WINDOW_SLOP, pendingIntent);
     }
 
     public static void unsetIdle(Context context) {
@@ -149,28 +149,27 @@ public class IdleReceiver extends WakefulBroadcastReceiver {
     /**
      * Interaction with the task manager service
      */
-    void reportNewIdleState(Context context, boolean isIdle) {
+    void reportNewIdleState(Context context, final boolean isIdle) {
+        final Context appContext = context.getApplicationContext();
+        ReceiverUtils.whenJobsLoaded(context, new Runnable() {
+            @Override
+            public void run() {
+                updateIdleJobs(appContext, isIdle);
+            }
+        });
+    }
+
+    private static void updateIdleJobs(Context context, boolean isIdle) {
         JobStore jobStore = JobStore.initAndGet(context);
         synchronized (jobStore) {
-            ArraySet<JobStatus> jobs = jobStore.getJobs();
+            ArraySet<JobStatus> jobs = jobStore.getIdleJobs();
             for (int i = 0; i < jobs.size(); i++) {
                 JobStatus ts = jobs.valueAt(i);
-                ts.idleConstraintSatisfied.set(isIdle);
+                if (ts.idleConstraintSatisfied.getAndSet(isIdle) != isIdle) {
+                    jobStore.markConstraintsChanged(ts);
+                }
             }
         }
-        startWakefulService(context, JobServiceCompat.maybeRunJobs(context));
-    }
-
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    private static void compatSetWindow(AlarmManager am, int type, long windowStartMillis, long windowLengthMillis, PendingIntent pendingIntent) {
-        // Samsung devices have a bug where setWindow() may run before the start time.
-        // https://code.google.com/p/android/issues/detail?id=69525
-        boolean isShittySamsungDevice = Build.MANUFACTURER.equalsIgnoreCase("samsung");
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && !isShittySamsungDevice) {
-            am.setWindow(type, windowStartMillis, windowLengthMillis, pendingIntent);
-        } else {
-            am.set(type, windowStartMillis, pendingIntent);
-        }
+        JobSchedulerService.runReadyJobs(context);
     }
 }
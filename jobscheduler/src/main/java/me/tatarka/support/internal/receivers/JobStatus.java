@@ -23,6 +23,7 @@ import android.text.format.DateUtils;
 import java.io.PrintWriter;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import me.tatarka.support.internal.job.ExtrasBlobStore;
 import me.tatarka.support.job.JobInfo;
 import me.tatarka.support.os.PersistableBundle;
 
@@ -31,6 +32,8 @@ import me.tatarka.support.os.PersistableBundle;
  * Created from the public {@link android.app.job.JobInfo} object when it lands on the scheduler.
  * Contains current state of the requirements of the job, as well as a function to evaluate
  * whether it's ready to run.
+ * The persisted state (the job and its run times) is immutable, so the job store can write out
+ * the same instances it is tracking without copying them.
  * This object is shared among the various controllers - hence why the different fields are atomic.
  * This isn't strictly necessary because each controller is only interested in a specific field,
  * and the receivers that are listening for global state change will all run on the main looper,
@@ -42,9 +45,25 @@ public class JobStatus {
     public static final long NO_LATEST_RUNTIME = Long.MAX_VALUE;
     public static final long NO_EARLIEST_RUNTIME = 0L;
 
+    /**
+     * The job as it was scheduled or loaded. If its extras are stored out of line they are missing
+     * here, see {@link #getJob()}.
+     */
     final JobInfo job;
-    final String name;
-    final String tag;
+    /**
+     * Where the extras are stored if they are too large to store inline with the job. Set on load
+     * or the first time the job store writes the job out.
+     */
+    private volatile ExtrasBlobStore.Blob extrasBlob;
+    /**
+     * The job including its extras, null until they are loaded.
+     */
+    private volatile JobInfo jobWithExtras;
+    /**
+     * Computed lazily since only logging uses these.
+     */
+    private String name;
+    private String tag;
 
     // Constraints.
     public final AtomicBoolean chargingConstraintSatisfied = new AtomicBoolean();
@@ -58,41 +77,57 @@ public class JobStatus {
      * Earliest point in the future at which this job will be eligible to run. A value of 0
      * indicates there is no delay constraint. See {@link #hasTimingDelayConstraint()}.
      */
-    private long earliestRunTimeElapsedMillis;
+    private final long earliestRunTimeElapsedMillis;
     /**
      * Latest point in the future at which this job must be run. A value of {@link Long#MAX_VALUE}
      * indicates there is no deadline constraint. See {@link #hasDeadlineConstraint()}.
      */
-    private long latestRunTimeElapsedMillis;
+    private final long latestRunTimeElapsedMillis;
     /**
      * How many times this job has failed, used to compute back-off.
      */
     private final int numFailures;
+    /**
+     * Position of this job in the {@link TimerQueue}s it is in, only touched by the queue.
+     */
+    int delayTimerIndex = TimerQueue.NOT_QUEUED;
+    int deadlineTimerIndex = TimerQueue.NOT_QUEUED;
 
-    private JobStatus(JobInfo job, int numFailures) {
+    private JobStatus(JobInfo job, int numFailures, long earliestRunTimeElapsedMillis,
+                      long latestRunTimeElapsedMillis) {
         this.job = job;
-        this.name = job.getService().flattenToShortString();
-        this.tag = "*job*/" + this.name;
+        this.jobWithExtras = job;
         this.numFailures = numFailures;
+        this.earliestRunTimeElapsedMillis = earliestRunTimeElapsedMillis;
+        this.latestRunTimeElapsedMillis = latestRunTimeElapsedMillis;
     }
 
     /**
      * Create a newly scheduled job.
      */
     public JobStatus(JobInfo job) {
-        this(job, 0);
+        this(job, SystemClock.elapsedRealtime());
+    }
 
-        final long elapsedNow = SystemClock.elapsedRealtime();
+    private JobStatus(JobInfo job, long elapsedNow) {
+        this(job, 0, initialEarliestRunTime(job, elapsedNow), initialLatestRunTime(job, elapsedNow));
+    }
 
+    private static long initialEarliestRunTime(JobInfo job, long elapsedNow) {
         if (job.isPeriodic()) {
-            earliestRunTimeElapsedMillis = elapsedNow;
-            latestRunTimeElapsedMillis = elapsedNow + job.getIntervalMillis();
-        } else {
-            earliestRunTimeElapsedMillis = job.hasEarlyConstraint() ?
-                    elapsedNow + job.getMinLatencyMillis() : NO_EARLIEST_RUNTIME;
-            latestRunTimeElapsedMillis = job.hasLateConstraint() ?
-                    elapsedNow + job.getMaxExecutionDelayMillis() : NO_LATEST_RUNTIME;
+            // Eligible for the last flex of the first period.
+            return elapsedNow + job.getIntervalMillis() - job.getFlexMillis();
         }
+        return job.hasEarlyConstraint() ?
+                elapsedNow + job.getMinLatencyMillis() : NO_EARLIEST_RUNTIME;
+    }
+
+    private static long initialLatestRunTime(JobInfo job, long elapsedNow) {
+        if (job.isPeriodic()) {
+            return elapsedNow + job.getIntervalMillis();
+        }
+        return job.hasLateConstraint() ?
+                elapsedNow + job.getMaxExecutionDelayMillis() : NO_LATEST_RUNTIME;
     }
 
     /**
@@ -104,10 +139,18 @@ public class JobStatus {
      */
     public JobStatus(JobInfo job, long earliestRunTimeElapsedMillis,
                      long latestRunTimeElapsedMillis) {
-        this(job, 0);
+        this(job, 0, earliestRunTimeElapsedMillis, latestRunTimeElapsedMillis);
+    }
 
-        this.earliestRunTimeElapsedMillis = earliestRunTimeElapsedMillis;
-        this.latestRunTimeElapsedMillis = latestRunTimeElapsedMillis;
+    /**
+     * Create a new JobStatus that was loaded from disk whose extras are stored out of line. They
+     * will be loaded the first time they are needed.
+     */
+    public JobStatus(JobInfo job, long earliestRunTimeElapsedMillis,
+                     long latestRunTimeElapsedMillis, ExtrasBlobStore.Blob extrasBlob) {
+        this(job, 0, earliestRunTimeElapsedMillis, latestRunTimeElapsedMillis);
+        this.extrasBlob = extrasBlob;
+        this.jobWithExtras = null;
     }
 
     /**
@@ -115,16 +158,47 @@ public class JobStatus {
      */
     public JobStatus(JobStatus rescheduling, long newEarliestRuntimeElapsedMillis,
                      long newLatestRuntimeElapsedMillis, int backoffAttempt) {
-        this(rescheduling.job, backoffAttempt);
-
-        earliestRunTimeElapsedMillis = newEarliestRuntimeElapsedMillis;
-        latestRunTimeElapsedMillis = newLatestRuntimeElapsedMillis;
+        this(rescheduling.job, backoffAttempt, newEarliestRuntimeElapsedMillis,
+                newLatestRuntimeElapsedMillis);
+        extrasBlob = rescheduling.extrasBlob;
+        jobWithExtras = rescheduling.jobWithExtras;
     }
 
+    /**
+     * @return The job including its extras, this will read them from disk if they are stored out
+     * of line and haven't been loaded yet.
+     */
     public JobInfo getJob() {
+        JobInfo result = jobWithExtras;
+        if (result == null) {
+            result = job.withExtras(extrasBlob.load());
+            jobWithExtras = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return The job without loading any out of line extras, its extras may be empty. Use
+     * {@link #getExtrasBlob()} to find where they are.
+     */
+    public JobInfo peekJob() {
         return job;
     }
 
+    /**
+     * @return Where the extras are stored if they are stored out of line, otherwise null.
+     */
+    public ExtrasBlobStore.Blob getExtrasBlob() {
+        return extrasBlob;
+    }
+
+    /**
+     * Remembers where the job store put the extras so they aren't written out again.
+     */
+    public void setExtrasBlob(ExtrasBlobStore.Blob extrasBlob) {
+        this.extrasBlob = extrasBlob;
+    }
+
     public int getJobId() {
         return job.getId();
     }
@@ -138,15 +212,21 @@ public class JobStatus {
     }
 
     public String getName() {
+        if (name == null) {
+            name = job.getService().flattenToShortString();
+        }
         return name;
     }
 
     public String getTag() {
+        if (tag == null) {
+            tag = "*job*/" + getName();
+        }
         return tag;
     }
 
     public PersistableBundle getExtras() {
-        return job.getExtras();
+        return getJob().getExtras();
     }
 
     public boolean hasConnectivityConstraint() {
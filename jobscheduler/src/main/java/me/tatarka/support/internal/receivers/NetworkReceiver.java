@@ -10,7 +10,7 @@ import android.support.v4.content.WakefulBroadcastReceiver;
 import android.support.v4.net.ConnectivityManagerCompat;
 
 import me.tatarka.support.internal.util.ArraySet;
-import me.tatarka.support.internal.job.JobServiceCompat;
+import me.tatarka.support.internal.job.JobSchedulerService;
 import me.tatarka.support.internal.job.JobStore;
 
 /**
@@ -32,7 +32,15 @@ public class NetworkReceiver extends WakefulBroadcastReceiver {
                 if (networkConnected) { // No point making the call if we know there's no conn.
                     networkUnmetered = !ConnectivityManagerCompat.isActiveNetworkMetered(connManager);
                 }
-                updateTrackedJobs(context, networkConnected, networkUnmetered);
+                final Context appContext = context.getApplicationContext();
+                final boolean connected = networkConnected;
+                final boolean unmetered = networkUnmetered;
+                ReceiverUtils.whenJobsLoaded(context, new Runnable() {
+                    @Override
+                    public void run() {
+                        updateTrackedJobs(appContext, connected, unmetered);
+                    }
+                });
             }
         }
 
@@ -62,20 +70,26 @@ public class NetworkReceiver extends WakefulBroadcastReceiver {
     private static void updateTrackedJobs(Context context, boolean networkConnected, boolean networkUnmetered) {
         final JobStore jobStore = JobStore.initAndGet(context);
         synchronized (jobStore) {
-            boolean changed = false;
-            ArraySet<JobStatus> jobs = jobStore.getJobs();
-            for (int i = 0; i < jobs.size(); i++) {
-                JobStatus ts = jobs.valueAt(i);
-                boolean prevIsConnected = ts.connectivityConstraintSatisfied.getAndSet(networkConnected);
-                boolean prevIsMetered = ts.unmeteredConstraintSatisfied.getAndSet(networkUnmetered);
-                if (prevIsConnected != networkConnected || prevIsMetered != networkUnmetered) {
-                    changed = true;
-                }
-            }
+            boolean changed = updateJobs(jobStore, jobStore.getConnectivityJobs(), networkConnected, networkUnmetered);
+            changed |= updateJobs(jobStore, jobStore.getUnmeteredJobs(), networkConnected, networkUnmetered);
 
             if (changed) {
-                startWakefulService(context, JobServiceCompat.maybeRunJobs(context));
+                JobSchedulerService.runReadyJobs(context);
+            }
+        }
+    }
+
+    private static boolean updateJobs(JobStore jobStore, ArraySet<JobStatus> jobs, boolean networkConnected, boolean networkUnmetered) {
+        boolean changed = false;
+        for (int i = 0; i < jobs.size(); i++) {
+            JobStatus ts = jobs.valueAt(i);
+            boolean prevIsConnected = ts.connectivityConstraintSatisfied.getAndSet(networkConnected);
+            boolean prevIsMetered = ts.unmeteredConstraintSatisfied.getAndSet(networkUnmetered);
+            if (prevIsConnected != networkConnected || prevIsMetered != networkUnmetered) {
+                jobStore.markConstraintsChanged(ts);
+                changed = true;
             }
         }
+        return changed;
     }
 }
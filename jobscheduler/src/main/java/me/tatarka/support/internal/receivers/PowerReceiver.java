@@ -10,7 +10,7 @@ import android.os.SystemClock;
 import android.support.v4.content.WakefulBroadcastReceiver;
 
 import me.tatarka.support.internal.util.ArraySet;
-import me.tatarka.support.internal.job.JobServiceCompat;
+import me.tatarka.support.internal.job.JobSchedulerService;
 import me.tatarka.support.internal.job.JobStore;
 
 /**
@@ -55,15 +55,26 @@ public class PowerReceiver extends WakefulBroadcastReceiver {
         }
     }
 
-    private static void maybeReportNewChargingState(Context context, boolean stablePower) {
+    private static void maybeReportNewChargingState(Context context, final boolean stablePower) {
+        final Context appContext = context.getApplicationContext();
+        ReceiverUtils.whenJobsLoaded(context, new Runnable() {
+            @Override
+            public void run() {
+                reportNewChargingState(appContext, stablePower);
+            }
+        });
+    }
+
+    private static void reportNewChargingState(Context context, boolean stablePower) {
         boolean reportChange = false;
         final JobStore jobStore = JobStore.initAndGet(context);
         synchronized (jobStore) {
-            ArraySet<JobStatus> jobs = jobStore.getJobs();
+            ArraySet<JobStatus> jobs = jobStore.getChargingJobs();
             for (int i = 0; i < jobs.size(); i++) {
                 JobStatus ts = jobs.valueAt(i);
                 boolean previous = ts.chargingConstraintSatisfied.getAndSet(stablePower);
                 if (previous != stablePower) {
+                    jobStore.markConstraintsChanged(ts);
                     reportChange = true;
                 }
             }
@@ -71,7 +82,7 @@ public class PowerReceiver extends WakefulBroadcastReceiver {
         // Let the scheduler know that state has changed. This may or may not result in an
         // execution.
         if (reportChange) {
-            startWakefulService(context, JobServiceCompat.maybeRunJobs(context));
+            JobSchedulerService.runReadyJobs(context);
         }
     }
 
@@ -1,9 +1,16 @@
 package me.tatarka.support.internal.receivers;
 
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import me.tatarka.support.internal.job.JobStore;
 
 import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
 import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
@@ -11,8 +18,45 @@ import static android.content.pm.PackageManager.DONT_KILL_APP;
 
 /** @hide */
 public final class ReceiverUtils {
+    /**
+     * Backstop for how long the device is kept awake waiting for the jobs to load, see
+     * {@link #whenJobsLoaded(Context, Runnable)}.
+     */
+    private static final long LOAD_WAKE_LOCK_TIMEOUT_MILLIS = 30 * 1000;
+
     private ReceiverUtils() {}
 
+    /**
+     * Runs work that reads the job store from a receiver. If the jobs have been loaded it runs
+     * right away, otherwise it runs on the io thread once they are, so the main thread never
+     * blocks on the load. The device is kept awake until then since the broadcast no longer does
+     * once {@link BroadcastReceiver#onReceive(Context, android.content.Intent)} returns.
+     */
+    public static void whenJobsLoaded(Context context, final Runnable work) {
+        JobStore jobStore = JobStore.initAndGet(context);
+        if (jobStore.isLoaded()) {
+            work.run();
+            return;
+        }
+        PowerManager pm = (PowerManager) context.getApplicationContext()
+                .getSystemService(Context.POWER_SERVICE);
+        final PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "JobStoreLoad");
+        wakeLock.setReferenceCounted(false);
+        wakeLock.acquire(LOAD_WAKE_LOCK_TIMEOUT_MILLIS);
+        jobStore.whenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work.run();
+                } finally {
+                    if (wakeLock.isHeld()) {
+                        wakeLock.release();
+                    }
+                }
+            }
+        });
+    }
+
     public static <T extends BroadcastReceiver> void enable(Context context, Class<T> receiverClass) {
         ComponentName receiver = new ComponentName(context, receiverClass);
         PackageManager pm = context.getPackageManager();
@@ -24,4 +68,17 @@ public final class ReceiverUtils {
         PackageManager pm = context.getPackageManager();
         pm.setComponentEnabledSetting(receiver, COMPONENT_ENABLED_STATE_DISABLED, DONT_KILL_APP);
     }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static void compatSetWindow(AlarmManager am, int type, long windowStartMillis, long windowLengthMillis, PendingIntent pendingIntent) {
+        // Samsung devices have a bug where setWindow() may run before the start time.
+        // https://code.google.com/p/android/issues/detail?id=69525
+        boolean isShittySamsungDevice = Build.MANUFACTURER.equalsIgnoreCase("samsung");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && !isShittySamsungDevice) {
+            am.setWindow(type, windowStartMillis, windowLengthMillis, pendingIntent);
+        } else {
+            am.set(type, windowStartMillis, pendingIntent);
+        }
+    }
 }
@@ -8,14 +8,11 @@ import android.os.SystemClock;
 import android.support.v4.content.WakefulBroadcastReceiver;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 
-import me.tatarka.support.internal.job.JobServiceCompat;
+import me.tatarka.support.internal.job.JobSchedulerService;
 import me.tatarka.support.internal.job.JobStore;
-import me.tatarka.support.internal.util.ArraySet;
+import me.tatarka.support.job.JobScheduler;
 
 /**
  * @hide
@@ -28,130 +25,139 @@ public class TimeReceiver extends WakefulBroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        List<JobStatus> jobs = getJobsSortedByLatestRuntime(context);
+        final Context appContext = context.getApplicationContext();
         if (ACTION_JOB_EXPIRED.equals(intent.getAction())) {
-            checkExpiredDeadlinesAndResetAlarm(context, jobs);
+            ReceiverUtils.whenJobsLoaded(context, new Runnable() {
+                @Override
+                public void run() {
+                    checkExpiredDeadlinesAndResetAlarm(appContext);
+                }
+            });
         } else if (ACTION_JOB_DELAY_EXPIRED.equals(intent.getAction())) {
-            checkExpiredDelaysAndResetAlarm(context, jobs);
+            ReceiverUtils.whenJobsLoaded(context, new Runnable() {
+                @Override
+                public void run() {
+                    checkExpiredDelaysAndResetAlarm(appContext);
+                }
+            });
+        } else if (Intent.ACTION_TIME_CHANGED.equals(intent.getAction())) {
+            // Alarms and run times are in elapsed time and aren't affected, only what is on disk.
+            JobStore.initAndGet(context).onTimeChanged();
         }
     }
 
     public static void setAlarmsForJob(Context context, JobStatus job) {
         if (job.hasTimingDelayConstraint() || job.hasDeadlineConstraint()) {
-            List<JobStatus> jobs = getJobsSortedByLatestRuntime(context);
-            maybeStopTrackingJob(context, job, jobs);
-            maybeUpdateAlarms(context,
-                    job.hasTimingDelayConstraint() ? job.getEarliestRunTime() : Long.MAX_VALUE,
-                    job.hasDeadlineConstraint() ? job.getLatestRunTimeElapsed() : Long.MAX_VALUE);
+            resetAlarms(context);
         }
     }
 
     public static void unsetAlarmsForJob(Context context, int jobId) {
-        List<JobStatus> jobs = getJobsSortedByLatestRuntime(context);
-        JobStatus unsetJob = null;
-        for (JobStatus job : jobs) {
-            if (job.matches(jobId)) {
-                unsetJob = job;
-                break;
-            }
+        JobStatus unsetJob;
+        JobStore jobStore = JobStore.initAndGet(context);
+        synchronized (jobStore) {
+            unsetJob = jobStore.getJobByJobId(jobId);
         }
 
-        if (unsetJob != null) {
-            maybeStopTrackingJob(context, unsetJob, jobs);
+        if (unsetJob != null
+                && (unsetJob.hasTimingDelayConstraint() || unsetJob.hasDeadlineConstraint())) {
+            resetAlarms(context);
         }
     }
 
-    private static void maybeStopTrackingJob(Context context, JobStatus job, List<JobStatus> jobs) {
-        if (jobs.contains(job)) {
-            long nextDelayExpiredElapsedMillis = checkExpiredDelaysAndResetAlarm(context, jobs);
-            long nextJobExpiredElapsedMillis = checkExpiredDeadlinesAndResetAlarm(context, jobs);
-            ControllerPrefs.getInstance(context).edit()
-                    .setNextDelayExipredElapsedMillis(nextDelayExpiredElapsedMillis)
-                    .setNextJobExpiredElapsedMillis(nextJobExpiredElapsedMillis)
-                    .apply();
-        }
+    private static void resetAlarms(Context context) {
+        checkExpiredDelaysAndResetAlarm(context);
+        checkExpiredDeadlinesAndResetAlarm(context);
     }
 
-    private static long checkExpiredDeadlinesAndResetAlarm(Context context, List<JobStatus> jobs) {
+    /**
+     * Removes every job whose deadline has passed from the deadline queue, the next alarm is for
+     * the earliest job left.
+     */
+    private static void checkExpiredDeadlinesAndResetAlarm(Context context) {
         long nextExpiryTime = Long.MAX_VALUE;
         final long nowElapsedMillis = SystemClock.elapsedRealtime();
-        Iterator<JobStatus> it = jobs.iterator();
         boolean jobNeedsRun = false;
-        while (it.hasNext()) {
-            JobStatus job = it.next();
-            if (!job.hasDeadlineConstraint()) {
-                continue;
-            }
-            final long jobDeadline = job.getLatestRunTimeElapsed();
-            if (jobDeadline <= nowElapsedMillis) {
+        JobStore jobStore = JobStore.initAndGet(context);
+        synchronized (jobStore) {
+            TimerQueue deadlines = jobStore.getDeadlineQueue();
+            List<JobStatus> expired = new ArrayList<JobStatus>();
+            deadlines.removeExpired(nowElapsedMillis, expired);
+            for (int i = 0; i < expired.size(); i++) {
+                JobStatus job = expired.get(i);
                 job.deadlineConstraintSatisfied.set(true);
+                jobStore.markConstraintsChanged(job);
                 jobNeedsRun = true;
-                it.remove();
-            } else { // Sorted by expiry time, so take the next one and stop.
-                nextExpiryTime = jobDeadline;
-                break;
             }
+            nextExpiryTime = deadlines.nextTime();
         }
 
         if (jobNeedsRun) {
-            startWakefulService(context, JobServiceCompat.maybeRunJobs(context));
+            JobSchedulerService.runReadyJobs(context);
         }
 
-        return setDeadlineExpiredAlarm(context, nextExpiryTime);
+        setDeadlineExpiredAlarm(context, nextExpiryTime);
     }
 
-    private static long checkExpiredDelaysAndResetAlarm(Context context, List<JobStatus> jobs) {
+    /**
+     * Removes every job whose delay has passed from the delay queue, the next alarm is for the
+     * earliest job left.
+     */
+    private static void checkExpiredDelaysAndResetAlarm(Context context) {
         final long nowElapsedMillis = SystemClock.elapsedRealtime();
         long nextDelayTime = Long.MAX_VALUE;
+        long windowEnd = Long.MAX_VALUE;
         boolean ready = false;
-        Iterator<JobStatus> it = jobs.iterator();
-        while (it.hasNext()) {
-            final JobStatus job = it.next();
-            if (!job.hasTimingDelayConstraint()) {
-                continue;
-            }
-            final long jobDelayTime = job.getEarliestRunTime();
-            if (jobDelayTime <= nowElapsedMillis) {
+        JobStore jobStore = JobStore.initAndGet(context);
+        synchronized (jobStore) {
+            TimerQueue delays = jobStore.getDelayQueue();
+            List<JobStatus> expired = new ArrayList<JobStatus>();
+            delays.removeExpired(nowElapsedMillis, expired);
+            for (int i = 0; i < expired.size(); i++) {
+                JobStatus job = expired.get(i);
                 job.timeDelayConstraintSatisfied.set(true);
-                if (canStopTrackingJob(job)) {
-                    it.remove();
-                }
+                jobStore.markConstraintsChanged(job);
                 if (job.isReady()) {
                     ready = true;
                 }
-            } else { // Keep going through list to get next delay time.
-                if (nextDelayTime > jobDelayTime) {
-                    nextDelayTime = jobDelayTime;
-                }
+            }
+            nextDelayTime = delays.nextTime();
+            long tolerance = JobScheduler.getConfig().getAlarmToleranceMillis();
+            if (nextDelayTime != Long.MAX_VALUE && tolerance > 0) {
+                // Fire at the last delay that expires within the first one's window so a single
+                // alarm covers all of them.
+                windowEnd = nextDelayTime + tolerance;
+                nextDelayTime = delays.latestTimeAtMost(windowEnd);
             }
         }
         if (ready) {
-            startWakefulService(context, JobServiceCompat.maybeRunJobs(context));
+            JobSchedulerService.runReadyJobs(context);
         }
-        return setDelayExpiredAlarm(context, nextDelayTime);
+        setDelayExpiredAlarm(context, nextDelayTime, windowEnd);
     }
 
-
-    private static long setDelayExpiredAlarm(Context context, long alarmTimeElapsedMillis) {
+    private static void setDelayExpiredAlarm(Context context, long alarmTimeElapsedMillis,
+                                             long windowEndElapsedMillis) {
         alarmTimeElapsedMillis = maybeAdjustAlarmTime(alarmTimeElapsedMillis);
         long nextDelayExpiredElapsedMillis = alarmTimeElapsedMillis;
+        long windowLengthMillis = windowEndElapsedMillis == Long.MAX_VALUE
+                ? 0 : Math.max(windowEndElapsedMillis - alarmTimeElapsedMillis, 0);
         Intent intent = new Intent(context, TimeReceiver.class);
         intent.setAction(ACTION_JOB_DELAY_EXPIRED);
         PendingIntent nextDelayExpiredAlarmIntent =
                 PendingIntent.getBroadcast(context, 0 /* ignored */, intent, 0);
-        updateAlarmWithPendingIntent(context, nextDelayExpiredAlarmIntent, nextDelayExpiredElapsedMillis);
-        return nextDelayExpiredElapsedMillis;
+        updateAlarmWithPendingIntent(context, nextDelayExpiredAlarmIntent,
+                nextDelayExpiredElapsedMillis, windowLengthMillis);
     }
 
-    private static long setDeadlineExpiredAlarm(Context context, long alarmTimeElapsedMillis) {
+    private static void setDeadlineExpiredAlarm(Context context, long alarmTimeElapsedMillis) {
         alarmTimeElapsedMillis = maybeAdjustAlarmTime(alarmTimeElapsedMillis);
         long nextJobExpiredElapsedMillis = alarmTimeElapsedMillis;
         Intent intent = new Intent(context, TimeReceiver.class);
         intent.setAction(ACTION_JOB_EXPIRED);
         PendingIntent deadlineExpiredAlarmIntent =
                 PendingIntent.getBroadcast(context, 0 /* ignored */, intent, 0);
-        updateAlarmWithPendingIntent(context, deadlineExpiredAlarmIntent, nextJobExpiredElapsedMillis);
-        return nextJobExpiredElapsedMillis;
+        updateAlarmWithPendingIntent(context, deadlineExpiredAlarmIntent, nextJobExpiredElapsedMillis, 0);
     }
 
     private static long maybeAdjustAlarmTime(long proposedAlarmTimeElapsedMillis) {
@@ -162,65 +168,16 @@ public class TimeReceiver extends WakefulBroadcastReceiver {
         return proposedAlarmTimeElapsedMillis;
     }
 
-    private static void updateAlarmWithPendingIntent(Context context, PendingIntent pi, long alarmTimeElapsed) {
+    private static void updateAlarmWithPendingIntent(Context context, PendingIntent pi,
+                                                     long alarmTimeElapsed, long windowLengthMillis) {
         AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         if (alarmTimeElapsed == Long.MAX_VALUE) {
             am.cancel(pi);
+        } else if (windowLengthMillis > 0) {
+            ReceiverUtils.compatSetWindow(am, AlarmManager.ELAPSED_REALTIME, alarmTimeElapsed,
+                    windowLengthMillis, pi);
         } else {
             am.set(AlarmManager.ELAPSED_REALTIME, alarmTimeElapsed, pi);
         }
     }
-
-    private static void maybeUpdateAlarms(Context context, long delayExpiredElapsed, long deadlineExpiredElapsed) {
-        ControllerPrefs prefs = ControllerPrefs.getInstance(context);
-        long nextDelayExpiredElapsedMillis = prefs.getNextDelayExpiredElapsedMillis();
-        long nextJobExpiredElapsedMillis = prefs.getNextJobExpiredElapsedMillis();
-
-        if (delayExpiredElapsed < nextDelayExpiredElapsedMillis) {
-            nextDelayExpiredElapsedMillis = setDelayExpiredAlarm(context, delayExpiredElapsed);
-        }
-
-        if (deadlineExpiredElapsed < nextJobExpiredElapsedMillis) {
-            nextJobExpiredElapsedMillis = setDeadlineExpiredAlarm(context, deadlineExpiredElapsed);
-        }
-
-        prefs.edit()
-                .setNextDelayExipredElapsedMillis(nextDelayExpiredElapsedMillis)
-                .setNextJobExpiredElapsedMillis(nextJobExpiredElapsedMillis)
-                .apply();
-    }
-
-    /**
-     * Determines whether this controller can stop tracking the given job.
-     * The controller is no longer interested in a job once its time constraint is satisfied, and
-     * the job's deadline is fulfilled - unlike other controllers a time constraint can't toggle
-     * back and forth.
-     */
-    private static boolean canStopTrackingJob(JobStatus job) {
-        return (!job.hasTimingDelayConstraint() ||
-                job.timeDelayConstraintSatisfied.get()) &&
-                (!job.hasDeadlineConstraint() ||
-                        job.deadlineConstraintSatisfied.get());
-    }
-
-    private static List<JobStatus> getJobsSortedByLatestRuntime(Context context) {
-        List<JobStatus> result = new ArrayList<JobStatus>();
-        JobStore jobStore = JobStore.initAndGet(context);
-        synchronized (jobStore) {
-            ArraySet<JobStatus> jobs = jobStore.getJobs();
-            for (int i = 0; i < jobs.size(); i++) {
-                JobStatus job = jobs.valueAt(i);
-                if (job.hasTimingDelayConstraint() || job.hasDeadlineConstraint()) {
-                    result.add(job);
-                }
-            }
-        }
-        Collections.sort(result, new Comparator<JobStatus>() {
-            @Override
-            public int compare(JobStatus lhs, JobStatus rhs) {
-                return Long.valueOf(lhs.getLatestRunTimeElapsed()).compareTo(rhs.getLatestRunTimeElapsed());
-            }
-        });
-        return result;
-    }
 }
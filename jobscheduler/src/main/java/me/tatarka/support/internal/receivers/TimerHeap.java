@@ -0,0 +1,187 @@
+package me.tatarka.support.internal.receivers;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An indexed min-heap of jobs keyed by either their earliest run time or their deadline. Each job
+ * remembers its own position in the heap so it can be removed in O(log n) without a search.
+ * <p/>
+ * This class is not thread safe, callers must lock on the {@link me.tatarka.support.internal.job.JobStore}.
+ *
+ * @hide
+ */
+public final class TimerHeap extends TimerQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private JobStatus[] heap = new JobStatus[INITIAL_CAPACITY];
+    private int size;
+
+    public TimerHeap(int type) {
+        super(type);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The job with the smallest time, or null if the heap is empty.
+     */
+    public JobStatus peek() {
+        return size == 0 ? null : heap[0];
+    }
+
+    /**
+     * Removes and returns the job with the smallest time, or null if the heap is empty.
+     */
+    public JobStatus poll() {
+        if (size == 0) {
+            return null;
+        }
+        JobStatus job = heap[0];
+        removeAt(0);
+        return job;
+    }
+
+    @Override
+    public void add(JobStatus job) {
+        if (getIndex(job) != NOT_QUEUED) {
+            return;
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        heap[size] = job;
+        setIndex(job, size);
+        size++;
+        siftUp(size - 1);
+    }
+
+    @Override
+    public boolean remove(JobStatus job) {
+        int index = getIndex(job);
+        if (index == NOT_QUEUED || index >= size || heap[index] != job) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public void removeExpired(long nowElapsedMillis, List<JobStatus> expired) {
+        while (size > 0 && getTime(heap[0]) <= nowElapsedMillis) {
+            expired.add(poll());
+        }
+    }
+
+    @Override
+    public long nextTime() {
+        return size == 0 ? Long.MAX_VALUE : getTime(heap[0]);
+    }
+
+    /**
+     * {@inheritDoc} This only visits those jobs and their children.
+     */
+    @Override
+    public long latestTimeAtMost(long limit) {
+        return latestTimeAtMost(0, limit);
+    }
+
+    private long latestTimeAtMost(int index, long limit) {
+        if (index >= size) {
+            return Long.MIN_VALUE;
+        }
+        long time = getTime(heap[index]);
+        if (time > limit) {
+            // Everything below is later still.
+            return Long.MIN_VALUE;
+        }
+        int child = 2 * index + 1;
+        return Math.max(time,
+                Math.max(latestTimeAtMost(child, limit), latestTimeAtMost(child + 1, limit)));
+    }
+
+    @Override
+    public boolean contains(JobStatus job) {
+        int index = getIndex(job);
+        return index != NOT_QUEUED && index < size && heap[index] == job;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            setIndex(heap[i], NOT_QUEUED);
+            heap[i] = null;
+        }
+        size = 0;
+    }
+
+    private void removeAt(int index) {
+        JobStatus removed = heap[index];
+        setIndex(removed, NOT_QUEUED);
+        size--;
+        if (index != size) {
+            JobStatus last = heap[size];
+            heap[index] = last;
+            setIndex(last, index);
+            heap[size] = null;
+            if (!siftUp(index)) {
+                siftDown(index);
+            }
+        } else {
+            heap[size] = null;
+        }
+    }
+
+    /**
+     * @return true if the job at the index moved.
+     */
+    private boolean siftUp(int index) {
+        JobStatus job = heap[index];
+        long time = getTime(job);
+        int start = index;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            JobStatus parentJob = heap[parent];
+            if (getTime(parentJob) <= time) {
+                break;
+            }
+            heap[index] = parentJob;
+            setIndex(parentJob, index);
+            index = parent;
+        }
+        heap[index] = job;
+        setIndex(job, index);
+        return index != start;
+    }
+
+    private void siftDown(int index) {
+        JobStatus job = heap[index];
+        long time = getTime(job);
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            JobStatus childJob = heap[child];
+            long childTime = getTime(childJob);
+            int right = child + 1;
+            if (right < size) {
+                long rightTime = getTime(heap[right]);
+                if (rightTime < childTime) {
+                    child = right;
+                    childJob = heap[right];
+                    childTime = rightTime;
+                }
+            }
+            if (time <= childTime) {
+                break;
+            }
+            heap[index] = childJob;
+            setIndex(childJob, index);
+            index = child;
+        }
+        heap[index] = job;
+        setIndex(job, index);
+    }
+}
@@ -0,0 +1,91 @@
+package me.tatarka.support.internal.receivers;
+
+import java.util.List;
+
+/**
+ * Jobs keyed by either their earliest run time or their deadline, used by the {@link TimeReceiver}
+ * to find which jobs have expired and when the next alarm has to go off. Each job remembers its own
+ * position in the queue so it can be removed without a search. A job can be in at most one delay
+ * queue and one deadline queue at a time.
+ * <p/>
+ * Implementations are not thread safe, callers must lock on the
+ * {@link me.tatarka.support.internal.job.JobStore}.
+ *
+ * @hide
+ */
+public abstract class TimerQueue {
+    /**
+     * Orders jobs by {@link JobStatus#getEarliestRunTime()}.
+     */
+    public static final int TYPE_DELAY = 0;
+    /**
+     * Orders jobs by {@link JobStatus#getLatestRunTimeElapsed()}.
+     */
+    public static final int TYPE_DEADLINE = 1;
+
+    static final int NOT_QUEUED = -1;
+
+    private final int type;
+
+    TimerQueue(int type) {
+        if (type != TYPE_DELAY && type != TYPE_DEADLINE) {
+            throw new IllegalArgumentException("Unknown queue type: " + type);
+        }
+        this.type = type;
+    }
+
+    public abstract int size();
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds the job to the queue, does nothing if it is already in it.
+     */
+    public abstract void add(JobStatus job);
+
+    /**
+     * Removes the job from the queue.
+     *
+     * @return Whether or not the job was in the queue.
+     */
+    public abstract boolean remove(JobStatus job);
+
+    public abstract boolean contains(JobStatus job);
+
+    public abstract void clear();
+
+    /**
+     * Removes every job whose time is at most the given time from the queue and adds them to
+     * expired, in no particular order.
+     */
+    public abstract void removeExpired(long nowElapsedMillis, List<JobStatus> expired);
+
+    /**
+     * @return The smallest time of the jobs in the queue, or {@link Long#MAX_VALUE} if it is empty.
+     */
+    public abstract long nextTime();
+
+    /**
+     * @return The latest time of the jobs in the queue whose time is at most the given limit, or
+     * {@link Long#MIN_VALUE} if there are none.
+     */
+    public abstract long latestTimeAtMost(long limit);
+
+    final long getTime(JobStatus job) {
+        return type == TYPE_DELAY ? job.getEarliestRunTime() : job.getLatestRunTimeElapsed();
+    }
+
+    final int getIndex(JobStatus job) {
+        return type == TYPE_DELAY ? job.delayTimerIndex : job.deadlineTimerIndex;
+    }
+
+    final void setIndex(JobStatus job, int index) {
+        if (type == TYPE_DELAY) {
+            job.delayTimerIndex = index;
+        } else {
+            job.deadlineTimerIndex = index;
+        }
+    }
+}
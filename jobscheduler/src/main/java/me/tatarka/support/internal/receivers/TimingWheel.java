@@ -0,0 +1,346 @@
+package me.tatarka.support.internal.receivers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel of jobs keyed by either their earliest run time or their deadline.
+ * Adding and removing a job is O(1) no matter how many jobs are in it, which makes it a better fit
+ * than {@link TimerHeap} once there are many thousands of timed jobs.
+ * <p/>
+ * Time is split into ticks of {@link #TICK_MILLIS}. Each level of the wheel has {@link #SLOTS}
+ * slots, a slot on level n covering SLOTS^n ticks. A job goes in the lowest level whose range
+ * reaches it and is moved down a level each time the wheel turns past the slot it is in. Jobs
+ * further out than the top level are kept in an overflow bucket. The wheel does not turn on its
+ * own, it is only moved forward when {@link #removeExpired(long, List)} is called, so the number of
+ * wakeups only depends on the alarms set from {@link #nextTime()}.
+ * <p/>
+ * This class is not thread safe, callers must lock on the {@link me.tatarka.support.internal.job.JobStore}.
+ *
+ * @hide
+ */
+public final class TimingWheel extends TimerQueue {
+    static final long TICK_MILLIS = 1000;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    /**
+     * Covers SLOTS^LEVELS ticks, a little over 194 days.
+     */
+    private static final int LEVELS = 4;
+    /**
+     * Jobs whose tick the wheel has reached. They may still be later than now if they are in the
+     * current tick.
+     */
+    private static final int DUE = LEVELS * SLOTS;
+    private static final int OVERFLOW = DUE + 1;
+
+    /**
+     * A job's index holds both the bucket it is in and its position in that bucket.
+     */
+    private static final int POSITION_BITS = 22;
+    private static final int POSITION_MASK = (1 << POSITION_BITS) - 1;
+
+    private final ArrayList<JobStatus>[] buckets;
+    private long currentTick;
+    private int size;
+    /**
+     * A bit for each slot of each level that has jobs in it, so finding the next one that does is a
+     * couple of bit operations instead of a scan.
+     */
+    private final long[] occupied = new long[LEVELS];
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(int type, long nowElapsedMillis) {
+        super(type);
+        buckets = (ArrayList<JobStatus>[]) new ArrayList[OVERFLOW + 1];
+        currentTick = tickOf(nowElapsedMillis);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(JobStatus job) {
+        if (getIndex(job) != NOT_QUEUED) {
+            return;
+        }
+        place(job);
+        size++;
+    }
+
+    @Override
+    public boolean remove(JobStatus job) {
+        if (!contains(job)) {
+            return false;
+        }
+        int index = getIndex(job);
+        removeAt(index >>> POSITION_BITS, index & POSITION_MASK);
+        return true;
+    }
+
+    @Override
+    public boolean contains(JobStatus job) {
+        int index = getIndex(job);
+        if (index == NOT_QUEUED) {
+            return false;
+        }
+        int bucket = index >>> POSITION_BITS;
+        int position = index & POSITION_MASK;
+        if (bucket >= buckets.length) {
+            return false;
+        }
+        ArrayList<JobStatus> jobs = buckets[bucket];
+        return jobs != null && position < jobs.size() && jobs.get(position) == job;
+    }
+
+    @Override
+    public void clear() {
+        for (ArrayList<JobStatus> jobs : buckets) {
+            if (jobs == null) {
+                continue;
+            }
+            for (int i = 0, count = jobs.size(); i < count; i++) {
+                setIndex(jobs.get(i), NOT_QUEUED);
+            }
+            jobs.clear();
+        }
+        size = 0;
+        Arrays.fill(occupied, 0);
+    }
+
+    @Override
+    public void removeExpired(long nowElapsedMillis, List<JobStatus> expired) {
+        advanceTo(tickOf(nowElapsedMillis));
+        ArrayList<JobStatus> due = buckets[DUE];
+        if (due == null) {
+            return;
+        }
+        // Going backwards, the job swapped into a removed job's place has already been checked.
+        for (int i = due.size() - 1; i >= 0; i--) {
+            JobStatus job = due.get(i);
+            if (getTime(job) <= nowElapsedMillis) {
+                removeAt(DUE, i);
+                expired.add(job);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc} Within a level the slots are in time order starting after the current one, so
+     * only the first non-empty slot of each level has to be looked at, and not even that if it
+     * starts after an earlier job that was already found.
+     */
+    @Override
+    public long nextTime() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        long next = earliestIn(DUE);
+        for (int level = 0; level < LEVELS; level++) {
+            int offset = nextOccupied(level);
+            if (offset == 0) {
+                continue;
+            }
+            int shift = SLOT_BITS * level;
+            long block = (currentTick >>> shift) + offset;
+            if ((block << shift) * TICK_MILLIS < next) {
+                next = Math.min(next, earliestIn(level * SLOTS + (int) (block & SLOT_MASK)));
+            }
+        }
+        long overflowStart = ((currentTick >>> (SLOT_BITS * LEVELS)) + 1) << (SLOT_BITS * LEVELS);
+        if (overflowStart * TICK_MILLIS < next) {
+            next = Math.min(next, earliestIn(OVERFLOW));
+        }
+        return next;
+    }
+
+    /**
+     * {@inheritDoc} This only visits the slots that start at or before the limit.
+     */
+    @Override
+    public long latestTimeAtMost(long limit) {
+        long latest = latestIn(DUE, limit);
+        long limitTick = tickOf(limit);
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            long block = currentTick >>> shift;
+            for (int i = 1; i <= SLOTS; i++) {
+                if ((block + i) << shift > limitTick) {
+                    break;
+                }
+                int bucket = level * SLOTS + (int) ((block + i) & SLOT_MASK);
+                latest = Math.max(latest, latestIn(bucket, limit));
+            }
+        }
+        return Math.max(latest, latestIn(OVERFLOW, limit));
+    }
+
+    private static long tickOf(long timeElapsedMillis) {
+        return timeElapsedMillis / TICK_MILLIS;
+    }
+
+    /**
+     * @return How many slots after the current one the next slot on the level with jobs in it is,
+     * from 1 to {@link #SLOTS}, or 0 if the level is empty.
+     */
+    private int nextOccupied(int level) {
+        long mask = occupied[level];
+        if (mask == 0) {
+            return 0;
+        }
+        int current = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        return Long.numberOfTrailingZeros(Long.rotateRight(mask, (current + 1) & SLOT_MASK)) + 1;
+    }
+
+    /**
+     * @return The next tick at which jobs have to be moved, or {@link Long#MAX_VALUE} if the wheel
+     * is empty.
+     */
+    private long nextEventTick() {
+        long next = Long.MAX_VALUE;
+        int offset = nextOccupied(0);
+        if (offset != 0) {
+            next = currentTick + offset;
+        }
+        // Every level's wrap around is also one of the levels' below it, so only the lowest level
+        // with jobs on it matters.
+        for (int level = 1; level <= LEVELS; level++) {
+            boolean empty = level == LEVELS ? isEmpty(OVERFLOW) : occupied[level] == 0;
+            if (!empty) {
+                int shift = SLOT_BITS * level;
+                return Math.min(next, ((currentTick >>> shift) + 1) << shift);
+            }
+        }
+        return next;
+    }
+
+    private void advanceTo(long tick) {
+        while (currentTick < tick) {
+            long next = nextEventTick();
+            if (next > tick) {
+                currentTick = tick;
+                return;
+            }
+            currentTick = next;
+            int slot = (int) (currentTick & SLOT_MASK);
+            if (slot == 0) {
+                cascade(1);
+            }
+            redistribute(slot);
+        }
+    }
+
+    /**
+     * The lower level just wrapped around, move the jobs in this level's next slot down.
+     */
+    private void cascade(int level) {
+        if (level == LEVELS) {
+            redistribute(OVERFLOW);
+            return;
+        }
+        int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        if (slot == 0) {
+            cascade(level + 1);
+        }
+        redistribute(level * SLOTS + slot);
+    }
+
+    private void redistribute(int bucket) {
+        ArrayList<JobStatus> jobs = buckets[bucket];
+        if (jobs == null || jobs.isEmpty()) {
+            return;
+        }
+        buckets[bucket] = null;
+        clearOccupied(bucket);
+        for (int i = 0, count = jobs.size(); i < count; i++) {
+            place(jobs.get(i));
+        }
+        jobs.clear();
+        if (buckets[bucket] == null) {
+            buckets[bucket] = jobs;
+        }
+    }
+
+    private void place(JobStatus job) {
+        long tick = tickOf(getTime(job));
+        long delta = tick - currentTick;
+        int bucket;
+        if (delta <= 0) {
+            bucket = DUE;
+        } else {
+            bucket = OVERFLOW;
+            for (int level = 0; level < LEVELS; level++) {
+                int shift = SLOT_BITS * level;
+                if (delta < 1L << (shift + SLOT_BITS)) {
+                    bucket = level * SLOTS + (int) ((tick >>> shift) & SLOT_MASK);
+                    break;
+                }
+            }
+            if (bucket != OVERFLOW) {
+                occupied[bucket / SLOTS] |= 1L << (bucket & SLOT_MASK);
+            }
+        }
+        ArrayList<JobStatus> jobs = buckets[bucket];
+        if (jobs == null) {
+            jobs = new ArrayList<JobStatus>();
+            buckets[bucket] = jobs;
+        }
+        setIndex(job, (bucket << POSITION_BITS) | jobs.size());
+        jobs.add(job);
+    }
+
+    private void removeAt(int bucket, int position) {
+        ArrayList<JobStatus> jobs = buckets[bucket];
+        setIndex(jobs.get(position), NOT_QUEUED);
+        JobStatus last = jobs.remove(jobs.size() - 1);
+        if (position < jobs.size()) {
+            jobs.set(position, last);
+            setIndex(last, (bucket << POSITION_BITS) | position);
+        }
+        size--;
+        if (jobs.isEmpty()) {
+            clearOccupied(bucket);
+        }
+    }
+
+    private void clearOccupied(int bucket) {
+        if (bucket < DUE) {
+            occupied[bucket / SLOTS] &= ~(1L << (bucket & SLOT_MASK));
+        }
+    }
+
+    private boolean isEmpty(int bucket) {
+        ArrayList<JobStatus> jobs = buckets[bucket];
+        return jobs == null || jobs.isEmpty();
+    }
+
+    private long earliestIn(int bucket) {
+        ArrayList<JobStatus> jobs = buckets[bucket];
+        long earliest = Long.MAX_VALUE;
+        if (jobs != null) {
+            for (int i = 0, count = jobs.size(); i < count; i++) {
+                earliest = Math.min(earliest, getTime(jobs.get(i)));
+            }
+        }
+        return earliest;
+    }
+
+    private long latestIn(int bucket, long limit) {
+        ArrayList<JobStatus> jobs = buckets[bucket];
+        long latest = Long.MIN_VALUE;
+        if (jobs != null) {
+            for (int i = 0, count = jobs.size(); i < count; i++) {
+                long time = getTime(jobs.get(i));
+                if (time <= limit) {
+                    latest = Math.max(latest, time);
+                }
+            }
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,138 @@
+package me.tatarka.support.internal.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for reading and writing the compact binary formats used to persist jobs. Integers are
+ * written as base-128 varints so small values (ids, flags, lengths) take a single byte, signed
+ * values are zig-zag encoded first so small negative values stay small as well.
+ *
+ * @hide
+ */
+public final class BinaryUtils {
+    private static final String UTF_8 = "UTF-8";
+    private static final int NULL_STRING_FIRST_BYTE = 0x80;
+
+    private BinaryUtils() {
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a varint byte length followed by the utf-8 bytes of the string.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Like {@link #writeString(DataOutput, String)} but the value may be null. A null is written
+     * as a two byte encoding of a 0 length, which {@link #writeVarInt(DataOutput, int)} never
+     * produces, so anything written with writeString can also be read with
+     * {@link #readNullableString(ByteBuffer)}.
+     */
+    public static void writeNullableString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_STRING_FIRST_BYTE);
+            out.writeByte(0);
+        } else {
+            writeString(out, value);
+        }
+    }
+
+    public static int readVarInt(ByteBuffer in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static long readVarLong(ByteBuffer in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    public static int readSignedVarInt(ByteBuffer in) throws IOException {
+        int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static long readSignedVarLong(ByteBuffer in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static String readString(ByteBuffer in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Malformed string length: " + length);
+        }
+        if (in.hasArray()) {
+            int offset = in.arrayOffset() + in.position();
+            in.position(in.position() + length);
+            return newString(in.array(), offset, length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return newString(bytes, 0, length);
+        }
+    }
+
+    public static String readNullableString(ByteBuffer in) throws IOException {
+        int position = in.position();
+        if (in.remaining() >= 2 && in.get(position) == (byte) NULL_STRING_FIRST_BYTE
+                && in.get(position + 1) == 0) {
+            in.position(position + 2);
+            return null;
+        }
+        return readString(in);
+    }
+
+    private static String newString(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            // utf-8 is always supported.
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package me.tatarka.support.internal.util;
+
+/**
+ * A {@link android.util.SparseArray}-like map of ints to objects that supports taking an O(1)
+ * {@link #snapshot()}. The snapshot shares its backing arrays with this map, the first mutation
+ * after a snapshot copies them so the snapshot never changes.
+ * <p/>
+ * This class is not thread safe, but a snapshot may be read from any thread once it has been
+ * handed off since nothing will modify it.
+ *
+ * @hide
+ */
+public final class CopyOnWriteSparseArray<E> {
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+    /**
+     * Whether the backing arrays are shared with a snapshot and must be copied before writing.
+     */
+    private boolean mShared;
+
+    public CopyOnWriteSparseArray() {
+        mKeys = ContainerHelpers.EMPTY_INTS;
+        mValues = ContainerHelpers.EMPTY_OBJECTS;
+    }
+
+    private CopyOnWriteSparseArray(int[] keys, Object[] values, int size) {
+        mKeys = keys;
+        mValues = values;
+        mSize = size;
+        mShared = true;
+    }
+
+    /**
+     * Returns a copy of this map that will not see any further changes. This does not copy
+     * anything until one of the two maps is modified.
+     */
+    public CopyOnWriteSparseArray<E> snapshot() {
+        mShared = true;
+        return new CopyOnWriteSparseArray<E>(mKeys, mValues, mSize);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Gets the Object mapped from the specified key, or <code>null</code> if no such mapping has
+     * been made.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int key) {
+        int i = ContainerHelpers.binarySearch(mKeys, mSize, key);
+        return i < 0 ? null : (E) mValues[i];
+    }
+
+    /**
+     * Returns the index for which {@link #keyAt} would return the specified key, or a negative
+     * number if the specified key is not mapped.
+     */
+    public int indexOfKey(int key) {
+        return ContainerHelpers.binarySearch(mKeys, mSize, key);
+    }
+
+    public int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E valueAt(int index) {
+        return (E) mValues[index];
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value, replacing the previous mapping
+     * from the specified key if there was one.
+     */
+    public void put(int key, E value) {
+        int i = ContainerHelpers.binarySearch(mKeys, mSize, key);
+        if (i >= 0) {
+            unshare(mKeys.length);
+            mValues[i] = value;
+            return;
+        }
+        i = ~i;
+        if (mShared || mSize >= mKeys.length) {
+            int capacity = mSize >= mKeys.length
+                    ? ContainerHelpers.idealIntArraySize(mSize + 1) : mKeys.length;
+            int[] keys = new int[capacity];
+            Object[] values = new Object[capacity];
+            System.arraycopy(mKeys, 0, keys, 0, i);
+            System.arraycopy(mValues, 0, values, 0, i);
+            System.arraycopy(mKeys, i, keys, i + 1, mSize - i);
+            System.arraycopy(mValues, i, values, i + 1, mSize - i);
+            mKeys = keys;
+            mValues = values;
+            mShared = false;
+        } else {
+            System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+            System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any.
+     */
+    public void remove(int key) {
+        int i = ContainerHelpers.binarySearch(mKeys, mSize, key);
+        if (i >= 0) {
+            removeAt(i);
+        }
+    }
+
+    public void removeAt(int index) {
+        unshare(mKeys.length);
+        System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+        mValues[mSize] = null;
+    }
+
+    public void clear() {
+        if (mShared) {
+            mKeys = ContainerHelpers.EMPTY_INTS;
+            mValues = ContainerHelpers.EMPTY_OBJECTS;
+            mShared = false;
+        } else {
+            for (int i = 0; i < mSize; i++) {
+                mValues[i] = null;
+            }
+        }
+        mSize = 0;
+    }
+
+    private void unshare(int capacity) {
+        if (!mShared) {
+            return;
+        }
+        int[] keys = new int[capacity];
+        Object[] values = new Object[capacity];
+        System.arraycopy(mKeys, 0, keys, 0, mSize);
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        mKeys = keys;
+        mValues = values;
+        mShared = false;
+    }
+}
@@ -0,0 +1,168 @@
+package me.tatarka.support.job;
+
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A {@link JobService} that runs each job synchronously on a background thread. You only have
+ * to override {@link #onRunJob(JobParameters)}, {@link #jobFinished(JobParameters, boolean)} is
+ * called for you when it returns.</p>
+ * <p>Jobs are run on a pool of at most {@link #getMaxThreads()} threads, any more jobs wait for
+ * a free thread. When a job is stopped the thread running it is interrupted, long-running jobs
+ * should also check {@link #isStopped(JobParameters)} and return early.</p>
+ */
+public abstract class ExecutorJobService extends JobService {
+    private static final String TAG = "ExecutorJobService";
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final SparseArray<JobTask> mTasks = new SparseArray<JobTask>();
+    private ThreadPoolExecutor mExecutor;
+
+    /**
+     * Override this method with the logic for your job. This is run on a background thread, so it
+     * may block until the work is done.
+     *
+     * @param params Parameters specifying info about this job, including the extras bundle you
+     *               optionally provided at job-creation time.
+     * @return True if this job should be rescheduled according to the back-off criteria specified
+     * at schedule-time. False otherwise. This is ignored if the job was stopped.
+     * @throws Exception If the job failed, it will be rescheduled.
+     */
+    protected abstract boolean onRunJob(JobParameters params) throws Exception;
+
+    /**
+     * Called on the main thread when the job is stopped, after its thread has been interrupted.
+     *
+     * @param params Parameters specifying info about this job.
+     * @return True to reschedule the job based on the retry criteria provided at job
+     * creation-time. False to drop the job. Defaults to true.
+     */
+    protected boolean onJobStopped(JobParameters params) {
+        return true;
+    }
+
+    /**
+     * @return The maximum number of jobs to run at once. Override to change, this is only read the
+     * first time a job is started. Defaults to the number of jobs the scheduler will run at once,
+     * see {@link JobSchedulerConfig#getMaxConcurrentJobs()}.
+     */
+    protected int getMaxThreads() {
+        return JobScheduler.getConfig().getMaxConcurrentJobs();
+    }
+
+    /**
+     * @return Whether or not the job has been stopped. This can be called from any thread.
+     */
+    public final boolean isStopped(JobParameters params) {
+        synchronized (mTasks) {
+            JobTask task = mTasks.get(params.getJobId());
+            return task == null || task.params != params || task.stopped;
+        }
+    }
+
+    @Override
+    public final boolean onStartJob(JobParameters params) {
+        JobTask task = new JobTask(params);
+        synchronized (mTasks) {
+            mTasks.put(params.getJobId(), task);
+            task.future = getExecutor().submit(task);
+        }
+        return true;
+    }
+
+    @Override
+    public final boolean onStopJob(JobParameters params) {
+        JobTask task;
+        synchronized (mTasks) {
+            task = mTasks.get(params.getJobId());
+            if (task != null && task.params == params) {
+                mTasks.remove(params.getJobId());
+                task.stopped = true;
+                task.future.cancel(true);
+            }
+        }
+        return onJobStopped(params);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        synchronized (mTasks) {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
+            mTasks.clear();
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor() {
+        if (mExecutor == null) {
+            int maxThreads = getMaxThreads();
+            mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), THREAD_FACTORY);
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mExecutor;
+    }
+
+    private void onTaskDone(JobTask task, boolean needsReschedule) {
+        synchronized (mTasks) {
+            if (task.stopped || mTasks.get(task.params.getJobId()) != task) {
+                // The scheduler already knows, it was told when the job was stopped.
+                return;
+            }
+            mTasks.remove(task.params.getJobId());
+        }
+        jobFinished(task.params, needsReschedule);
+    }
+
+    private class JobTask implements Runnable {
+        final JobParameters params;
+        Future<?> future;
+        volatile boolean stopped;
+
+        JobTask(JobParameters params) {
+            this.params = params;
+        }
+
+        @Override
+        public void run() {
+            boolean needsReschedule;
+            try {
+                needsReschedule = onRunJob(params);
+            } catch (InterruptedException e) {
+                needsReschedule = true;
+            } catch (Exception e) {
+                Log.e(TAG, "Error while running job: " + params.getJobId(), e);
+                needsReschedule = true;
+            }
+            onTaskDone(this, needsReschedule);
+        }
+    }
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ExecutorJobService #" + mCount.getAndIncrement());
+        }
+    };
+}
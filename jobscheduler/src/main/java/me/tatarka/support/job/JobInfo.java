@@ -77,6 +77,12 @@ public class JobInfo implements Parcelable {
      */
     public static final int DEFAULT_BACKOFF_POLICY = BACKOFF_POLICY_EXPONENTIAL;
 
+    /**
+     * Use the scheduler's default execution timeslice. See
+     * {@link Builder#setExecutionTimeslice(long)}.
+     */
+    public static final long DEFAULT_EXECUTION_TIMESLICE = 0L;
+
     private final int jobId;
     private final PersistableBundle extras;
     private final ComponentName service;
@@ -90,8 +96,10 @@ public class JobInfo implements Parcelable {
     private final boolean isPeriodic;
     private final boolean isPersisted;
     private final long intervalMillis;
+    private final long flexMillis;
     private final long initialBackoffMillis;
     private final int backoffPolicy;
+    private final long executionTimesliceMillis;
 
     /**
      * Unique job id associated with this class. This is assigned to your job by the scheduler.
@@ -175,6 +183,16 @@ public class JobInfo implements Parcelable {
         return intervalMillis;
     }
 
+    /**
+     * How long before the end of each period this job may run, see
+     * {@link Builder#setPeriodic(long, long)}. This is the same as the interval if no flex was
+     * set, or on api 21+ where the flex is ignored. This value is <b>not</b> set if the job does
+     * not recur periodically.
+     */
+    public long getFlexMillis() {
+        return flexMillis;
+    }
+
     /**
      * The amount of time the JobScheduler will wait before rescheduling a failed job. This value
      * will be increased depending on the backoff policy specified at job creation time. Defaults
@@ -193,6 +211,15 @@ public class JobInfo implements Parcelable {
         return backoffPolicy;
     }
 
+    /**
+     * How long this job may run before the scheduler stops it, or
+     * {@link #DEFAULT_EXECUTION_TIMESLICE} to use the scheduler's default. See
+     * {@link Builder#setExecutionTimeslice(long)}.
+     */
+    public long getExecutionTimesliceMillis() {
+        return executionTimesliceMillis;
+    }
+
     /**
      * User can specify an early constraint of 0L, which is valid, so we keep track of whether the
      * function was called at all.
@@ -225,10 +252,12 @@ public class JobInfo implements Parcelable {
         isPeriodic = in.readInt() == 1;
         isPersisted = in.readInt() == 1;
         intervalMillis = in.readLong();
+        flexMillis = in.readLong();
         initialBackoffMillis = in.readLong();
         backoffPolicy = in.readInt();
         hasEarlyConstraint = in.readInt() == 1;
         hasLateConstraint = in.readInt() == 1;
+        executionTimesliceMillis = in.readLong();
     }
 
     private JobInfo(JobInfo.Builder b) {
@@ -243,10 +272,42 @@ public class JobInfo implements Parcelable {
         isPeriodic = b.mIsPeriodic;
         isPersisted = b.mIsPersisted;
         intervalMillis = b.mIntervalMillis;
+        flexMillis = b.mFlexMillis;
         initialBackoffMillis = b.mInitialBackoffMillis;
         backoffPolicy = b.mBackoffPolicy;
         hasEarlyConstraint = b.mHasEarlyConstraint;
         hasLateConstraint = b.mHasLateConstraint;
+        executionTimesliceMillis = b.mExecutionTimesliceMillis;
+    }
+
+    private JobInfo(JobInfo other, PersistableBundle extras) {
+        jobId = other.jobId;
+        this.extras = extras;
+        service = other.service;
+        requireCharging = other.requireCharging;
+        requireDeviceIdle = other.requireDeviceIdle;
+        networkType = other.networkType;
+        minLatencyMillis = other.minLatencyMillis;
+        maxExecutionDelayMillis = other.maxExecutionDelayMillis;
+        isPeriodic = other.isPeriodic;
+        isPersisted = other.isPersisted;
+        intervalMillis = other.intervalMillis;
+        flexMillis = other.flexMillis;
+        initialBackoffMillis = other.initialBackoffMillis;
+        backoffPolicy = other.backoffPolicy;
+        hasEarlyConstraint = other.hasEarlyConstraint;
+        hasLateConstraint = other.hasLateConstraint;
+        executionTimesliceMillis = other.executionTimesliceMillis;
+    }
+
+    /**
+     * Returns a copy of this job with the given extras, used when extras are loaded separately
+     * from the rest of the job.
+     *
+     * @hide
+     */
+    public JobInfo withExtras(PersistableBundle extras) {
+        return new JobInfo(this, extras);
     }
 
     @Override
@@ -267,10 +328,12 @@ public class JobInfo implements Parcelable {
         out.writeInt(isPeriodic ? 1 : 0);
         out.writeInt(isPersisted ? 1 : 0);
         out.writeLong(intervalMillis);
+        out.writeLong(flexMillis);
         out.writeLong(initialBackoffMillis);
         out.writeInt(backoffPolicy);
         out.writeInt(hasEarlyConstraint ? 1 : 0);
         out.writeInt(hasLateConstraint ? 1 : 0);
+        out.writeLong(executionTimesliceMillis);
     }
 
     public static final Creator<JobInfo> CREATOR = new Creator<JobInfo>() {
@@ -310,6 +373,7 @@ public class JobInfo implements Parcelable {
         private boolean mHasEarlyConstraint;
         private boolean mHasLateConstraint;
         private long mIntervalMillis;
+        private long mFlexMillis;
         // Back-off parameters.
         private long mInitialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
         private int mBackoffPolicy = DEFAULT_BACKOFF_POLICY;
@@ -317,6 +381,7 @@ public class JobInfo implements Parcelable {
          * Easy way to track whether the client has tried to set a back-off policy.
          */
         private boolean mBackoffPolicySet = false;
+        private long mExecutionTimesliceMillis = DEFAULT_EXECUTION_TIMESLICE;
 
         /**
          * @param jobId      Application-provided id for this job. Subsequent calls to cancel, or
@@ -390,8 +455,27 @@ public class JobInfo implements Parcelable {
          * @param intervalMillis Millisecond interval for which this job will repeat.
          */
         public Builder setPeriodic(long intervalMillis) {
+            return setPeriodic(intervalMillis, intervalMillis);
+        }
+
+        /**
+         * Specify that this job should recur with the provided interval and flex. The job can
+         * run at any time within the last <code>flexMillis</code> of each period, which lets it
+         * run along with other work instead of waking the device just for it.
+         * Setting this function on the builder with {@link #setMinimumLatency(long)} or
+         * {@link #setOverrideDeadline(long)} will result in an error.
+         * <p>The flex is ignored on api 21+, where the framework's scheduler is used and has no
+         * flex, so the job behaves as if {@link #setPeriodic(long)} was called. Jobs returned from
+         * {@link JobScheduler#getAllPendingJobs()} there have a flex equal to their interval.</p>
+         *
+         * @param intervalMillis Millisecond interval for which this job will repeat.
+         * @param flexMillis     Millisecond flex for this job, must be greater than 0 and at most
+         *                       <code>intervalMillis</code>.
+         */
+        public Builder setPeriodic(long intervalMillis, long flexMillis) {
             mIsPeriodic = true;
             mIntervalMillis = intervalMillis;
+            mFlexMillis = flexMillis;
             mHasEarlyConstraint = mHasLateConstraint = true;
             return this;
         }
@@ -461,6 +545,23 @@ public class JobInfo implements Parcelable {
             return this;
         }
 
+        /**
+         * Set how long this job may run before it is stopped. Once the timeslice is up the
+         * scheduler calls {@link JobService#onStopJob(JobParameters)}, if the job still hasn't
+         * finished shortly after that it is unbound and rescheduled as if it had failed. This
+         * defaults to {@link #DEFAULT_EXECUTION_TIMESLICE}, which uses
+         * {@link JobSchedulerConfig#getExecutionTimesliceMillis()}.
+         *
+         * @param timesliceMillis Milliseconds the job may run for.
+         */
+        public Builder setExecutionTimeslice(long timesliceMillis) {
+            if (timesliceMillis < 0) {
+                throw new IllegalArgumentException("timesliceMillis must not be negative");
+            }
+            mExecutionTimesliceMillis = timesliceMillis;
+            return this;
+        }
+
         /**
          * @return The job object to hand to the JobScheduler. This object is immutable.
          */
@@ -481,6 +582,10 @@ public class JobInfo implements Parcelable {
                 throw new IllegalArgumentException("Can't call setMinimumLatency() on a " +
                         "periodic job");
             }
+            if (mIsPeriodic && (mFlexMillis <= 0 || mFlexMillis > mIntervalMillis)) {
+                throw new IllegalArgumentException("Flex must be greater than 0 and at most " +
+                        "the interval of a periodic job.");
+            }
             if (mBackoffPolicySet && mRequiresDeviceIdle) {
                 throw new IllegalArgumentException("An idle mode job will not respect any" +
                         " back-off policy, so calling setBackoffCriteria with" +
@@ -7,6 +7,7 @@ import java.util.List;
 
 import me.tatarka.support.internal.JobSchedulerCompat;
 import me.tatarka.support.internal.JobSchedulerLollipopDelegate;
+import me.tatarka.support.internal.job.JobSchedulerService;
 
 /**
  * Created by evantatarka on 10/21/14.
@@ -26,6 +27,8 @@ public abstract class JobScheduler {
     // TODO: Determine if this is necessary.
     public static final int RESULT_SUCCESS = 1;
 
+    private static volatile JobSchedulerConfig sConfig = new JobSchedulerConfig.Builder().build();
+
     /**
      * @param job The job you wish scheduled. See {@link JobInfo.Builder JobInfo.Builder} for more
      *            detail on the sorts of jobs you can schedule.
@@ -48,10 +51,21 @@ public abstract class JobScheduler {
     public abstract void cancelAll();
 
     /**
+     * On api < 21 this blocks until the jobs have been read from disk the first time. Use
+     * {@link #getAllPendingJobs(PendingJobsCallback)} to avoid blocking the main thread.
+     *
      * @return a list of all the jobs registered by this package that have not yet been executed.
      */
     public abstract List<JobInfo> getAllPendingJobs();
 
+    /**
+     * Like {@link #getAllPendingJobs()}, but doesn't block while the jobs are being read from disk.
+     *
+     * @param callback called on the main thread with all the jobs registered by this package that
+     *                 have not yet been executed.
+     */
+    public abstract void getAllPendingJobs(PendingJobsCallback callback);
+
     /**
      * Get an instance of a the {@link JobScheduler}, which will delegate to the android one in api
      * 21+ and use a backported version on older apis.
@@ -66,4 +80,44 @@ public abstract class JobScheduler {
             return JobSchedulerCompat.getCompatInstance(context);
         }
     }
+
+    /**
+     * Set the config for the backported scheduler used on api < 21. Some settings only take
+     * effect if this is called before the job scheduler is first used, so call it early, for
+     * example in {@link android.app.Application#onCreate()}.
+     *
+     * @param config the config, see {@link JobSchedulerConfig.Builder}
+     */
+    public static void setConfig(JobSchedulerConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("config must not be null");
+        }
+        sConfig = config;
+    }
+
+    /**
+     * @return the current config, the defaults if {@link #setConfig(JobSchedulerConfig)} hasn't
+     * been called.
+     */
+    public static JobSchedulerConfig getConfig() {
+        return sConfig;
+    }
+
+    /**
+     * @return Counters kept by the backported scheduler used on api < 21, for diagnostics. On api
+     * 21+ they are always 0.
+     */
+    public static JobSchedulerStats getStats() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new JobSchedulerStats(0, 0, 0);
+        }
+        return JobSchedulerService.getStats();
+    }
+
+    /**
+     * Receives the jobs from {@link #getAllPendingJobs(PendingJobsCallback)}.
+     */
+    public interface PendingJobsCallback {
+        void onPendingJobs(List<JobInfo> jobs);
+    }
 }
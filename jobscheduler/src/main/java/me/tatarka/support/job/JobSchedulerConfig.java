@@ -0,0 +1,157 @@
+package me.tatarka.support.job;
+
+/**
+ * Settings for the backported scheduler used on api < 21, set with
+ * {@link JobScheduler#setConfig(JobSchedulerConfig)}. They have no effect on api 21+, where the
+ * framework's scheduler is used. Use the {@link Builder} to create one.
+ */
+public class JobSchedulerConfig {
+    private static final int DEFAULT_MAX_CONCURRENT_JOBS = 3;
+    private static final long DEFAULT_EXECUTION_TIMESLICE_MILLIS = 60 * 1000;
+    private static final long DEFAULT_WRITE_BEHIND_WINDOW_MILLIS = 500;
+
+    private final int maxConcurrentJobs;
+    private final long executionTimesliceMillis;
+    private final long alarmToleranceMillis;
+    private final long writeBehindWindowMillis;
+    private final boolean useTimingWheel;
+
+    private JobSchedulerConfig(Builder b) {
+        maxConcurrentJobs = b.mMaxConcurrentJobs;
+        executionTimesliceMillis = b.mExecutionTimesliceMillis;
+        alarmToleranceMillis = b.mAlarmToleranceMillis;
+        writeBehindWindowMillis = b.mWriteBehindWindowMillis;
+        useTimingWheel = b.mUseTimingWheel;
+    }
+
+    /**
+     * The maximum number of jobs that may run at once, see
+     * {@link Builder#setMaxConcurrentJobs(int)}.
+     */
+    public int getMaxConcurrentJobs() {
+        return maxConcurrentJobs;
+    }
+
+    /**
+     * How long a job may run for if it doesn't set its own timeslice, see
+     * {@link Builder#setExecutionTimeslice(long)}.
+     */
+    public long getExecutionTimesliceMillis() {
+        return executionTimesliceMillis;
+    }
+
+    /**
+     * How late a job's delay alarm may fire, see {@link Builder#setAlarmTolerance(long)}.
+     */
+    public long getAlarmToleranceMillis() {
+        return alarmToleranceMillis;
+    }
+
+    /**
+     * How long changes to the scheduled jobs are buffered before they are written to disk, see
+     * {@link Builder#setWriteBehindWindow(long)}.
+     */
+    public long getWriteBehindWindowMillis() {
+        return writeBehindWindowMillis;
+    }
+
+    /**
+     * Whether delays and deadlines are tracked with a timing wheel, see
+     * {@link Builder#setUseTimingWheel(boolean)}.
+     */
+    public boolean isUseTimingWheel() {
+        return useTimingWheel;
+    }
+
+    /**
+     * Builder class for constructing {@link JobSchedulerConfig} objects. Anything not set keeps its
+     * default.
+     */
+    public static final class Builder {
+        private int mMaxConcurrentJobs = DEFAULT_MAX_CONCURRENT_JOBS;
+        private long mExecutionTimesliceMillis = DEFAULT_EXECUTION_TIMESLICE_MILLIS;
+        private long mAlarmToleranceMillis;
+        private long mWriteBehindWindowMillis = DEFAULT_WRITE_BEHIND_WINDOW_MILLIS;
+        private boolean mUseTimingWheel;
+
+        /**
+         * Set the maximum number of jobs that may run at once. Any more ready jobs are queued and
+         * started as running jobs finish. This defaults to 3, the same as the framework.
+         *
+         * @param maxConcurrentJobs The number of jobs, at least 1.
+         */
+        public Builder setMaxConcurrentJobs(int maxConcurrentJobs) {
+            if (maxConcurrentJobs < 1) {
+                throw new IllegalArgumentException("maxConcurrentJobs must be at least 1");
+            }
+            mMaxConcurrentJobs = maxConcurrentJobs;
+            return this;
+        }
+
+        /**
+         * Set how long a job may run for if it doesn't set its own
+         * {@link JobInfo.Builder#setExecutionTimeslice(long)}. This defaults to a minute, the same
+         * as the framework.
+         *
+         * @param timesliceMillis Milliseconds a job may run for.
+         */
+        public Builder setExecutionTimeslice(long timesliceMillis) {
+            if (timesliceMillis <= 0) {
+                throw new IllegalArgumentException("timesliceMillis must be positive");
+            }
+            mExecutionTimesliceMillis = timesliceMillis;
+            return this;
+        }
+
+        /**
+         * Allow delay alarms to fire up to the given amount of time late. Jobs whose delays expire
+         * within that window of each other are then run by a single alarm, and on api 19+ the
+         * system may also batch it with other apps' alarms. Deadlines are never made later. This
+         * defaults to 0, which fires an alarm exactly when each delay expires.
+         *
+         * @param toleranceMillis Milliseconds an alarm may be late by.
+         */
+        public Builder setAlarmTolerance(long toleranceMillis) {
+            if (toleranceMillis < 0) {
+                throw new IllegalArgumentException("toleranceMillis must not be negative");
+            }
+            mAlarmToleranceMillis = toleranceMillis;
+            return this;
+        }
+
+        /**
+         * Set how long changes to the scheduled jobs are buffered before they are written to disk.
+         * Changes within this window are collapsed into a single write. This defaults to 500ms.
+         *
+         * @param windowMillis Milliseconds to buffer changes for, 0 to write them right away.
+         */
+        public Builder setWriteBehindWindow(long windowMillis) {
+            if (windowMillis < 0) {
+                throw new IllegalArgumentException("windowMillis must not be negative");
+            }
+            mWriteBehindWindowMillis = windowMillis;
+            return this;
+        }
+
+        /**
+         * Track delays and deadlines with a timing wheel instead of a heap. Adding and removing
+         * jobs is then O(1) instead of O(log n), which is worth it if your app keeps many thousands
+         * of timed jobs scheduled. This only takes effect if the config is set before the job
+         * scheduler is first used, for example in {@link android.app.Application#onCreate()}.
+         *
+         * @param useTimingWheel True to use a timing wheel. This defaults to false.
+         */
+        public Builder setUseTimingWheel(boolean useTimingWheel) {
+            mUseTimingWheel = useTimingWheel;
+            return this;
+        }
+
+        /**
+         * @return The config to pass to {@link JobScheduler#setConfig(JobSchedulerConfig)}. This
+         * object is immutable.
+         */
+        public JobSchedulerConfig build() {
+            return new JobSchedulerConfig(this);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package me.tatarka.support.job;
+
+/**
+ * Counters kept by the backported scheduler used on api < 21 since the process started, get them
+ * with {@link JobScheduler#getStats()}. They are always 0 on api 21+, where the framework's
+ * scheduler is used.
+ */
+public class JobSchedulerStats {
+    private final int timeoutCount;
+    private final int forcedUnbindCount;
+    private final long wakeLockHeldMillis;
+
+    /**
+     * @hide
+     */
+    public JobSchedulerStats(int timeoutCount, int forcedUnbindCount, long wakeLockHeldMillis) {
+        this.timeoutCount = timeoutCount;
+        this.forcedUnbindCount = forcedUnbindCount;
+        this.wakeLockHeldMillis = wakeLockHeldMillis;
+    }
+
+    /**
+     * How many jobs have been stopped for running past their timeslice, see
+     * {@link JobSchedulerConfig.Builder#setExecutionTimeslice(long)}.
+     */
+    public int getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * How many jobs had their service unbound because they didn't finish after being stopped.
+     */
+    public int getForcedUnbindCount() {
+        return forcedUnbindCount;
+    }
+
+    /**
+     * The total time wake locks have been held for running jobs.
+     */
+    public long getWakeLockHeldMillis() {
+        return wakeLockHeldMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "JobSchedulerStats{timeouts=" + timeoutCount
+                + ", forcedUnbinds=" + forcedUnbindCount
+                + ", wakeLockHeldMillis=" + wakeLockHeldMillis + "}";
+    }
+}
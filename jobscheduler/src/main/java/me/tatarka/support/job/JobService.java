@@ -9,6 +9,11 @@ import android.os.Message;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import me.tatarka.support.internal.IJobServiceCompat;
 
 /**
@@ -39,6 +44,14 @@ public abstract class JobService extends Service {
      * Message that the client has completed execution of this job.
      */
     private final int MSG_JOB_FINISHED = 2;
+    /**
+     * Message that will result in a call to {@link #onStartJobs(java.util.List)}.
+     */
+    private final int MSG_EXECUTE_JOBS = 3;
+    /**
+     * Message that the client has completed execution of several jobs.
+     */
+    private final int MSG_JOBS_FINISHED = 4;
 
     /**
      * Lock object for {@link #mHandler}.
@@ -68,6 +81,13 @@ public abstract class JobService extends Service {
             Message m = Message.obtain(mHandler, MSG_STOP_JOB, jobParams);
             m.sendToTarget();
         }
+
+        @Override
+        public void startJobs(List<JobParameters> jobParams) {
+            ensureHandler();
+            Message m = Message.obtain(mHandler, MSG_EXECUTE_JOBS, jobParams);
+            m.sendToTarget();
+        }
     };
 
     /**
@@ -93,7 +113,12 @@ public abstract class JobService extends Service {
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
+            if (msg.what == MSG_EXECUTE_JOBS || msg.what == MSG_JOBS_FINISHED) {
+                handleBatchMessage(msg.what, (List<JobParameters>) msg.obj, msg.arg2 == 1);
+                return;
+            }
             final JobParameters params = (JobParameters) msg.obj;
             switch (msg.what) {
                 case MSG_EXECUTE_JOB:
@@ -134,6 +159,67 @@ public abstract class JobService extends Service {
             }
         }
 
+        private void handleBatchMessage(int what, List<JobParameters> paramsList, boolean needsReschedule) {
+            if (what == MSG_EXECUTE_JOBS) {
+                try {
+                    boolean workOngoing = JobService.this.onStartJobs(paramsList);
+                    ackStartMessages(paramsList, workOngoing);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while executing jobs: " + paramsList.size());
+                    throw new RuntimeException(e);
+                }
+            } else {
+                // Jobs started together share a callback, so finish them with one call each.
+                for (Map.Entry<IBinder, int[]> entry : groupByCallback(paramsList).entrySet()) {
+                    IJobCallback callback = IJobCallback.Stub.asInterface(entry.getKey());
+                    try {
+                        callback.jobsFinished(entry.getValue(), needsReschedule);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Error reporting job finish to system: binder has gone" +
+                                "away.");
+                    }
+                }
+            }
+        }
+
+        private void ackStartMessages(List<JobParameters> paramsList, boolean workOngoing) {
+            for (Map.Entry<IBinder, int[]> entry : groupByCallback(paramsList).entrySet()) {
+                IJobCallback callback = IJobCallback.Stub.asInterface(entry.getKey());
+                try {
+                    callback.acknowledgeStartMessages(entry.getValue(), workOngoing);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "System unreachable for starting jobs.");
+                }
+            }
+        }
+
+        private Map<IBinder, int[]> groupByCallback(List<JobParameters> paramsList) {
+            Map<IBinder, List<JobParameters>> groups = new LinkedHashMap<IBinder, List<JobParameters>>();
+            for (JobParameters params : paramsList) {
+                IJobCallback callback = params.getCallback();
+                if (callback == null) {
+                    Log.e(TAG, "finishJob() called for a nonexistent job id.");
+                    continue;
+                }
+                List<JobParameters> group = groups.get(callback.asBinder());
+                if (group == null) {
+                    group = new ArrayList<JobParameters>();
+                    groups.put(callback.asBinder(), group);
+                }
+                group.add(params);
+            }
+            Map<IBinder, int[]> result = new LinkedHashMap<IBinder, int[]>();
+            for (Map.Entry<IBinder, List<JobParameters>> entry : groups.entrySet()) {
+                List<JobParameters> group = entry.getValue();
+                int[] jobIds = new int[group.size()];
+                for (int i = 0; i < jobIds.length; i++) {
+                    jobIds[i] = group.get(i).getJobId();
+                }
+                result.put(entry.getKey(), jobIds);
+            }
+            return result;
+        }
+
         private void ackStartMessage(JobParameters params, boolean workOngoing) {
             final IJobCallback callback = params.getCallback();
             final int jobId = params.getJobId();
@@ -186,6 +272,31 @@ public abstract class JobService extends Service {
      */
     public abstract boolean onStartJob(JobParameters params);
 
+    /**
+     * Called instead of {@link #onStartJob(JobParameters)} when several jobs for this service
+     * became ready at the same time. Override this if you can do the work for all of them at
+     * once, for example with a single network request. Like {@link #onStartJob(JobParameters)}
+     * this is executed on your application's main thread. The default implementation calls
+     * {@link #onStartJob(JobParameters)} for each job.
+     * <p>This is only used on api < 21, the system JobScheduler always starts jobs one at a
+     * time.</p>
+     *
+     * @param params Parameters for each job that is starting.
+     * @return True if your service needs to process the work (on a separate thread), you can
+     * finish the jobs all at once with {@link #jobsFinished(java.util.List, boolean)} or one at a
+     * time with {@link #jobFinished(JobParameters, boolean)}. False if there's no more work to be
+     * done for any of these jobs.
+     */
+    public boolean onStartJobs(List<JobParameters> params) {
+        for (JobParameters jobParams : params) {
+            if (!onStartJob(jobParams)) {
+                // Finish this one right away, the rest are acknowledged together as ongoing.
+                mHandler.ackStartMessage(jobParams, false);
+            }
+        }
+        return true;
+    }
+
     /**
      * This method is called if the system has determined that you must stop execution of your job
      * even before you've had a chance to call {@link #jobFinished(JobParameters, boolean)}.
@@ -231,4 +342,20 @@ public abstract class JobService extends Service {
         m.arg2 = needsReschedule ? 1 : 0;
         m.sendToTarget();
     }
+
+    /**
+     * Like {@link #jobFinished(JobParameters, boolean)} but for several jobs at once, such as the
+     * ones passed to {@link #onStartJobs(java.util.List)}. This can be called from any thread.
+     *
+     * @param params          Parameters of each job that has finished.
+     * @param needsReschedule True if these jobs should be rescheduled according to the back-off
+     *                        criteria specified at schedule-time. False otherwise.
+     */
+    public final void jobsFinished(List<JobParameters> params, boolean needsReschedule) {
+        ensureHandler();
+        Message m = Message.obtain(mHandler, MSG_JOBS_FINISHED,
+                new ArrayList<JobParameters>(params));
+        m.arg2 = needsReschedule ? 1 : 0;
+        m.sendToTarget();
+    }
 }
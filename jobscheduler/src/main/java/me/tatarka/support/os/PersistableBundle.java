@@ -7,12 +7,15 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import me.tatarka.support.internal.util.BinaryUtils;
 import me.tatarka.support.internal.util.XmlUtils;
 
 /**
@@ -497,4 +500,161 @@ public final class PersistableBundle implements Parcelable, Cloneable, XmlUtils.
         }
         return EMPTY;
     }
+
+    private static final int BINARY_TYPE_INT = 0;
+    private static final int BINARY_TYPE_LONG = 1;
+    private static final int BINARY_TYPE_DOUBLE = 2;
+    private static final int BINARY_TYPE_STRING = 3;
+    private static final int BINARY_TYPE_INT_ARRAY = 4;
+    private static final int BINARY_TYPE_LONG_ARRAY = 5;
+    private static final int BINARY_TYPE_DOUBLE_ARRAY = 6;
+    private static final int BINARY_TYPE_STRING_ARRAY = 7;
+    private static final int BINARY_TYPE_BUNDLE = 8;
+    private static final int BINARY_TYPE_NULL = 9;
+
+    /**
+     * Writes this bundle in a compact binary form that can be read back with
+     * {@link #restoreFromBinary(java.nio.ByteBuffer)}. Like the xml form, null keys, values and
+     * string array items are kept.
+     *
+     * @hide
+     */
+    public void saveToBinary(DataOutput out) throws IOException {
+        Set<String> keys = keySet();
+        BinaryUtils.writeVarInt(out, keys.size());
+        for (String key : keys) {
+            Object v = get(key);
+            BinaryUtils.writeNullableString(out, key);
+            if (v == null) {
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_NULL);
+            } else if (v instanceof Integer) {
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_INT);
+                BinaryUtils.writeSignedVarInt(out, (Integer) v);
+            } else if (v instanceof Long) {
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_LONG);
+                BinaryUtils.writeSignedVarLong(out, (Long) v);
+            } else if (v instanceof Double) {
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_DOUBLE);
+                out.writeDouble((Double) v);
+            } else if (v instanceof String) {
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_STRING);
+                BinaryUtils.writeString(out, (String) v);
+            } else if (v instanceof int[]) {
+                int[] array = (int[]) v;
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_INT_ARRAY);
+                BinaryUtils.writeVarInt(out, array.length);
+                for (int item : array) {
+                    BinaryUtils.writeSignedVarInt(out, item);
+                }
+            } else if (v instanceof long[]) {
+                long[] array = (long[]) v;
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_LONG_ARRAY);
+                BinaryUtils.writeVarInt(out, array.length);
+                for (long item : array) {
+                    BinaryUtils.writeSignedVarLong(out, item);
+                }
+            } else if (v instanceof double[]) {
+                double[] array = (double[]) v;
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_DOUBLE_ARRAY);
+                BinaryUtils.writeVarInt(out, array.length);
+                for (double item : array) {
+                    out.writeDouble(item);
+                }
+            } else if (v instanceof String[]) {
+                String[] array = (String[]) v;
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_STRING_ARRAY);
+                BinaryUtils.writeVarInt(out, array.length);
+                for (String item : array) {
+                    BinaryUtils.writeNullableString(out, item);
+                }
+            } else if (v instanceof PersistableBundle) {
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_BUNDLE);
+                ((PersistableBundle) v).saveToBinary(out);
+            } else if (PersistableBundleCompat.instanceOf(v)) {
+                BinaryUtils.writeVarInt(out, BINARY_TYPE_BUNDLE);
+                new PersistableBundle(v).saveToBinary(out);
+            } else {
+                throw new IOException("Unknown Object o=" + v);
+            }
+        }
+    }
+
+    /**
+     * @hide
+     */
+    public static PersistableBundle restoreFromBinary(ByteBuffer in) throws IOException {
+        int size = BinaryUtils.readVarInt(in);
+        if (size == 0) {
+            return EMPTY;
+        }
+        PersistableBundle bundle = new PersistableBundle(size);
+        for (int i = 0; i < size; i++) {
+            String key = BinaryUtils.readNullableString(in);
+            int type = BinaryUtils.readVarInt(in);
+            switch (type) {
+                case BINARY_TYPE_INT:
+                    bundle.putInt(key, BinaryUtils.readSignedVarInt(in));
+                    break;
+                case BINARY_TYPE_LONG:
+                    bundle.putLong(key, BinaryUtils.readSignedVarLong(in));
+                    break;
+                case BINARY_TYPE_DOUBLE:
+                    bundle.putDouble(key, in.getDouble());
+                    break;
+                case BINARY_TYPE_STRING:
+                    bundle.putString(key, BinaryUtils.readString(in));
+                    break;
+                case BINARY_TYPE_INT_ARRAY: {
+                    int[] array = new int[readArrayLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = BinaryUtils.readSignedVarInt(in);
+                    }
+                    bundle.putIntArray(key, array);
+                    break;
+                }
+                case BINARY_TYPE_LONG_ARRAY: {
+                    long[] array = new long[readArrayLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = BinaryUtils.readSignedVarLong(in);
+                    }
+                    bundle.putLongArray(key, array);
+                    break;
+                }
+                case BINARY_TYPE_DOUBLE_ARRAY: {
+                    double[] array = new double[readArrayLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.getDouble();
+                    }
+                    bundle.putDoubleArray(key, array);
+                    break;
+                }
+                case BINARY_TYPE_STRING_ARRAY: {
+                    String[] array = new String[readArrayLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = BinaryUtils.readNullableString(in);
+                    }
+                    bundle.putStringArray(key, array);
+                    break;
+                }
+                case BINARY_TYPE_BUNDLE:
+                    bundle.putPersistableBundle(key, restoreFromBinary(in));
+                    break;
+                case BINARY_TYPE_NULL:
+                    bundle.putString(key, null);
+                    break;
+                default:
+                    throw new IOException("Unknown type=" + type);
+            }
+        }
+        return bundle;
+    }
+
+    private static int readArrayLength(ByteBuffer in) throws IOException {
+        int length = BinaryUtils.readVarInt(in);
+        // Every element takes at least a byte, so anything larger is corrupt.
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Malformed array length: " + length);
+        }
+        return length;
+    }
 }